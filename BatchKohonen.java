@@ -0,0 +1,274 @@
+import java.io.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class BatchKohonen extends ClusteringAlgorithm
+{
+	// Batch self-organizing map over a MatrixFile that does not have to fit in memory.
+	//
+	// Usage: java BatchKohonen n epochs train.bin [test.bin] [seed]
+	//
+	// Every epoch is one sequential pass over the file in blocks. The BMU of every row is found
+	// (in parallel within a block) and the row is added to the sum of its BMU. At the end of the
+	// pass every prototype becomes the mean of the rows whose BMU lies within the radius of it, in
+	// the Manhattan distance on the map that Kohonen uses. The radius decays linearly from n/2 to 0,
+	// so the last epochs behave like k-means on the map units. Prototypes without rows in their
+	// neighbourhood keep their position. The codebook is initialized like the Kohonen constructor.
+	// The sums are doubles, so that units with many rows keep their precision.
+
+	private int n, epochs, dim;
+	private double prefetchThreshold;
+	private String trainFileName, testFileName;
+	private Random random;
+
+	// Prototype of map unit (x, y) is prototypes[x * n + y]
+	private float[][] prototypes;
+	private int[] assignment;
+
+	// Results of test()
+	private double hitrate;
+	private double accuracy;
+
+	public BatchKohonen(int n, int epochs, String trainFileName, String testFileName, long seed)
+	{
+		this.n = n;
+		this.epochs = epochs;
+		this.trainFileName = trainFileName;
+		this.testFileName = testFileName;
+		this.random = new Random(seed);
+		prefetchThreshold = 0.5;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 3) {
+			System.out.println("usage: java BatchKohonen n epochs train.bin [test.bin] [seed]");
+			System.exit(1);
+		}
+
+		BatchKohonen ca = new BatchKohonen(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2],
+			(args.length > 3 ? args[3] : null), (args.length > 4 ? Long.parseLong(args[4]) : 1));
+		ca.setVerbose(true);
+		ca.train();
+		if (args.length > 3)
+			ca.test();
+	}
+
+	/************************* TRAINING METHODS ****************************/
+
+	public boolean train()
+	{
+		try (MatrixFile file = new MatrixFile(trainFileName)) {
+			if (file.rows() > Integer.MAX_VALUE)
+				throw new IOException("too many rows for the assignment array");
+
+			dim = file.dim();
+			prototypes = new float[n * n][dim];
+			for (float[] p : prototypes)
+				for (int j = 0; j < dim; j++)
+					p[j] = random.nextFloat();
+			assignment = new int[(int)file.rows()];
+			Arrays.fill(assignment, -1);
+
+			for (int t = 0; t < epochs; t++) {
+				double radius = (n / 2.0) * (1 - (double)t / epochs);
+				epoch(file, t, radius);
+
+				if (verbose) {
+					System.out.print("\r[");
+					System.out.print(Math.round((1000.0 * (t + 1)) / epochs) / 10.0 + "%]");
+				}
+			}
+			if (verbose)
+				System.out.println();
+
+			/// One more pass so that the assignment matches the final prototypes
+			epoch(file, epochs, -1);
+			return true;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/// One pass over the file. Updates the prototypes with the given radius, or only the
+	/// assignment when the radius is negative.
+	private void epoch(MatrixFile file, int t, double radius) throws IOException
+	{
+		beginIteration();
+		int units = n * n;
+		double[][] sums = new double[units][dim];
+		long[] counts = new long[units];
+		long[] changes = { 0 };
+		double[] error = { 0 };
+		int[] bmu = new int[file.blockRows()];
+		double[] distances = new double[file.blockRows()];
+
+		file.forEachBlock(block -> {
+			int first = (int)block.firstRow;
+			IntStream.range(0, block.count).parallel().forEach(i -> bmu[i] = findBMU(block.rows[i], distances, i));
+
+			for (int i = 0; i < block.count; i++) {
+				changes[0] += (assignment[first + i] == bmu[i] ? 0 : 1);
+				assignment[first + i] = bmu[i];
+				double[] sum = sums[bmu[i]];
+				float[] v = block.rows[i];
+				for (int j = 0; j < dim; j++)
+					sum[j] += v[j];
+				counts[bmu[i]]++;
+				error[0] += distances[i];
+			}
+		});
+
+		if (radius >= 0)
+			update(sums, counts, radius);
+		endIteration(t, file.rows() * units, changes[0], (file.rows() == 0 ? 0 : error[0] / file.rows()));
+	}
+
+	/// Sets every prototype to the mean of the rows whose BMU is within radius of it on the map.
+	/// Only the units in the square around u that contains its radius are visited.
+	private void update(double[][] sums, long[] counts, double radius)
+	{
+		float[][] next = new float[n * n][];
+		int reach = (int)Math.min(radius, n);
+
+		for (int u = 0; u < n * n; u++) {
+			int ux = u / n, uy = u % n;
+			double[] sum = new double[dim];
+			long count = 0;
+			for (int bx = Math.max(0, ux - reach); bx <= Math.min(n - 1, ux + reach); bx++) {
+				for (int by = Math.max(0, uy - reach); by <= Math.min(n - 1, uy + reach); by++) {
+					int b = bx * n + by;
+					int manHatDist = Math.abs(ux - bx) + Math.abs(uy - by);
+					if (manHatDist <= radius && counts[b] > 0) {
+						double[] s = sums[b];
+						for (int j = 0; j < dim; j++)
+							sum[j] += s[j];
+						count += counts[b];
+					}
+				}
+			}
+
+			if (count > 0) {
+				float[] p = new float[dim];
+				for (int j = 0; j < dim; j++)
+					p[j] = (float)(sum[j] / count);
+				next[u] = p;
+			}
+			else {
+				next[u] = prototypes[u];
+			}
+		}
+		prototypes = next;
+	}
+
+	/// Returns the unit closest to v and stores its distance in distances[i].
+	private int findBMU(float[] v, double[] distances, int i)
+	{
+		int best = 0;
+		double d, min = Double.MAX_VALUE;
+
+		for (int u = 0; u < prototypes.length; u++) {
+			if ((d = metric.distance(v, prototypes[u])) < min) {
+				min = d;
+				best = u;
+			}
+		}
+		distances[i] = min;
+		return best;
+	}
+
+	/********************** TEST METHODS ****************/
+
+	/// Streams the test file; client i is assigned to the BMU of training row i.
+	public boolean test()
+	{
+		long[] totals = new long[3];   // requests, prefetched, hits
+
+		try (MatrixFile file = new MatrixFile(testFileName)) {
+			file.forEachBlock(block -> {
+				for (int i = 0; i < block.count && block.firstRow + i < assignment.length; i++) {
+					float[] v = block.rows[i], p = prototypes[assignment[(int)block.firstRow + i]];
+					for (int j = 0; j < v.length; j++) {
+						boolean requested = (v[j] != 0), wasPrefetched = (p[j] > prefetchThreshold);
+						totals[0] += (requested ? 1 : 0);
+						totals[1] += (wasPrefetched ? 1 : 0);
+						totals[2] += (requested && wasPrefetched ? 1 : 0);
+					}
+				}
+			});
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		hitrate = (double)totals[2] / totals[0];
+		accuracy = (double)totals[2] / totals[1];
+		if (verbose)
+			showTest();
+		return true;
+	}
+
+	public void showTest()
+	{
+		System.out.println("Prefetch threshold=" + prefetchThreshold);
+		System.out.println("Hitrate: " + hitrate);
+		System.out.println("Accuracy: " + accuracy);
+		System.out.println("Hitrate+Accuracy=" + (hitrate + accuracy));
+	}
+
+	public void showMembers()
+	{
+		for (int u = 0; u < n * n; u++)
+			System.out.println("\nMembers cluster[" + (u / n) + "][" + (u % n) + "] :" + getMembers(u));
+	}
+
+	public void showPrototypes()
+	{
+		for (int u = 0; u < n * n; u++)
+			System.out.println("\nPrototype cluster[" + (u / n) + "][" + (u % n) + "] :" + Arrays.toString(prototypes[u]));
+	}
+
+	public void setPrefetchThreshold(double prefetchThreshold)
+	{
+		this.prefetchThreshold = prefetchThreshold;
+	}
+
+	/// Units are numbered row by row, as in Kohonen.
+	public int clusterCount()
+	{
+		return n * n;
+	}
+
+	public float[] getPrototype(int c)
+	{
+		return prototypes[c];
+	}
+
+	public int clusterSize(int c)
+	{
+		int size = 0;
+		for (int a : assignment)
+			size += (a == c ? 1 : 0);
+		return size;
+	}
+
+	public Set<Integer> getMembers(int c)
+	{
+		Set<Integer> members = new TreeSet<Integer>();
+		for (int i = 0; i < assignment.length; i++)
+			if (assignment[i] == c)
+				members.add(i);
+		return members;
+	}
+
+	public int[] assignments()
+	{
+		return assignment.clone();
+	}
+
+	public int[] clusterSizes()
+	{
+		return clusterSizes(assignment, clusterCount());
+	}
+}
@@ -0,0 +1,171 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.*;
+
+public class Checkpointer implements Closeable
+{
+	// Writes checkpoints of a training run on a background thread, so that training does not wait
+	// for the disk. The training thread copies its state into a State (cheap compared to an
+	// iteration) and hands it over; if the previous checkpoint is still being written, the new one
+	// replaces it in the queue instead of blocking. Every checkpoint is written to a temporary file
+	// that is synced and then atomically moved over the checkpoint file, so a crash leaves either
+	// the old or the new checkpoint, never a torn one.
+	//
+	// Layout: the int MAGIC, the class name of the algorithm, then the algorithm's own state.
+
+	public static final int MAGIC = 0x434c434b;   // "CLCK"
+
+	// A copy of the training state, written on the background thread
+	public interface State
+	{
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private Path file, temp;
+	private String algorithm;
+	private int every;
+	private ExecutorService writer;
+
+	// The next checkpoint to write, null if none is pending
+	private State pending;
+
+	// Failure of the last write, reported by close()
+	private volatile IOException failure;
+
+	/// Writes checkpoints of 'algorithm' to fileName; due() is true every 'every' iterations.
+	public Checkpointer(String fileName, String algorithm, int every)
+	{
+		this.file = Paths.get(fileName);
+		this.temp = Paths.get(fileName + ".tmp");
+		this.algorithm = algorithm;
+		this.every = Math.max(1, every);
+		writer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Checkpoint writer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/// Returns true if a checkpoint is due after 'iterations' completed iterations.
+	public boolean due(int iterations)
+	{
+		return iterations % every == 0;
+	}
+
+	/// Queues state to be written; replaces a queued checkpoint that has not been started yet.
+	public synchronized void save(State state)
+	{
+		boolean idle = (pending == null);
+		pending = state;
+		if (idle)
+			writer.execute(this::writePending);
+	}
+
+	private void writePending()
+	{
+		State state;
+		synchronized (this) {
+			state = pending;
+			pending = null;
+		}
+
+		try {
+			try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+			     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeUTF(algorithm);
+				state.write(out);
+				out.flush();
+				fos.getFD().sync();
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/// Waits until the queued checkpoints are written. Throws if the last write failed.
+	public void close() throws IOException
+	{
+		writer.shutdown();
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/// Opens a checkpoint of 'algorithm' for reading, positioned after the header.
+	public static DataInputStream open(String fileName, String algorithm) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException(fileName + " is not a checkpoint");
+			String stored = in.readUTF();
+			if (!stored.equals(algorithm))
+				throw new IOException(fileName + " is a checkpoint of " + stored + ", not of " + algorithm);
+			return in;
+		}
+		catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/// Serializes an object, e.g. a java.util.Random whose full state is serialized, on the training
+	/// thread. Write the result with writeBytes().
+	public static byte[] serialize(Serializable object)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+			oos.writeObject(object);
+		}
+		catch (IOException e) {
+			// Writing to memory does not fail
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/// Writes the bytes of a serialized object, preceded by their length.
+	public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+	{
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/// Reads an object written by serialize() and writeBytes(). Only a java.util.Random is accepted,
+	/// the one object checkpoints contain, so a crafted checkpoint cannot instantiate other classes.
+	public static Object readObject(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			ois.setObjectInputFilter(Checkpointer::filter);
+			return ois.readObject();
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/// Allows java.util.Random and arrays of primitives (its fields), rejects every other class.
+	private static ObjectInputFilter.Status filter(ObjectInputFilter.FilterInfo info)
+	{
+		Class<?> type = info.serialClass();
+		if (type == null)
+			return ObjectInputFilter.Status.UNDECIDED;
+		while (type.isArray())
+			type = type.getComponentType();
+		if (type == Random.class || type.isPrimitive())
+			return ObjectInputFilter.Status.ALLOWED;
+		return ObjectInputFilter.Status.REJECTED;
+	}
+}
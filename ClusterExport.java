@@ -0,0 +1,272 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class ClusterExport implements Closeable
+{
+	// Writes the memberships and prototypes of a trained algorithm to files for downstream jobs,
+	// instead of printing them element by element like showMembers() and showPrototypes(). Numbers
+	// and names are encoded directly into a large direct buffer that is written to a FileChannel
+	// whenever it fills up, so the output is produced incrementally and no strings are built.
+	//
+	// Memberships, one line per client (row of the training data), -1 for a client in no cluster:
+	//   CSV     client,cluster               the client name from clients.dat, or its index
+	//   binary  the int MEMBERS_MAGIC and the number of clients (long), big-endian, followed by
+	//           the cluster of every client as a little-endian int32
+	//
+	// Prototypes, one line per cluster:
+	//   CSV     cluster,size,<url>,...       header with the URL names from requests.dat, or the
+	//           URL indices; values are written with PRECISION decimals, trailing zeros removed
+	//   binary  a MatrixFile with one row per cluster, so it can be read with MatrixFile
+	//
+	// Usage: ClusterExport.members(ca, clientNames, "members.csv") etc., or option 6 in RunClustering.
+
+	public static final int MEMBERS_MAGIC = 0x434c4d42;   // "CLMB"
+
+	// Decimals of the prototype values in CSV files; the binary files are exact
+	public static final int PRECISION = 6;
+
+	// Size of the write buffer
+	public static final int BUFFER = 1 << 20;
+
+	private static final long SCALE = 1000000L;   // 10^PRECISION
+
+	private FileChannel channel;
+	private ByteBuffer buffer;
+
+	private ClusterExport(String fileName) throws IOException
+	{
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		buffer = ByteBuffer.allocateDirect(BUFFER);
+	}
+
+	/******************************* EXPORTS *********************************/
+
+	/// Writes the memberships as CSV, or in the binary format if fileName ends with ".bin".
+	/// clientNames may be null.
+	public static void members(ClusteringAlgorithm ca, List<String> clientNames, String fileName) throws IOException
+	{
+		int[] clusterOf = clusterOf(ca, clientNames == null ? 0 : clientNames.size());
+
+		try (ClusterExport out = new ClusterExport(fileName)) {
+			if (fileName.endsWith(".bin")) {
+				out.ensure(12);
+				out.buffer.order(ByteOrder.BIG_ENDIAN).putInt(MEMBERS_MAGIC).putLong(clusterOf.length);
+				out.buffer.order(ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < clusterOf.length; i++) {
+					out.ensure(4);
+					out.buffer.putInt(clusterOf[i]);
+				}
+				return;
+			}
+
+			out.putAscii("client,cluster\n");
+			for (int i = 0; i < clusterOf.length; i++) {
+				if (clientNames != null && i < clientNames.size())
+					out.putName(clientNames.get(i));
+				else
+					out.putInt(i);
+				out.putByte(',');
+				out.putInt(clusterOf[i]);
+				out.putByte('\n');
+			}
+		}
+	}
+
+	/// Writes the prototypes as CSV, or as a MatrixFile if fileName ends with ".bin".
+	/// urlNames may be null.
+	public static void prototypes(ClusteringAlgorithm ca, List<String> urlNames, String fileName) throws IOException
+	{
+		int count = ca.clusterCount();
+		int dim = (count == 0 ? 0 : ca.getPrototype(0).length);
+		int[] sizes = ca.clusterSizes();
+
+		try (ClusterExport out = new ClusterExport(fileName)) {
+			if (fileName.endsWith(".bin")) {
+				out.ensure(MatrixFile.HEADER);
+				out.buffer.order(ByteOrder.BIG_ENDIAN).putInt(MatrixFile.MAGIC).putLong(count).putInt(dim);
+				out.buffer.order(ByteOrder.LITTLE_ENDIAN);
+				for (int c = 0; c < count; c++) {
+					float[] p = ca.getPrototype(c);
+					for (int j = 0; j < dim; j++) {
+						out.ensure(4);
+						out.buffer.putFloat(p[j]);
+					}
+				}
+				return;
+			}
+
+			out.putAscii("cluster,size");
+			for (int j = 0; j < dim; j++) {
+				out.putByte(',');
+				if (urlNames != null && j < urlNames.size())
+					out.putName(urlNames.get(j));
+				else
+					out.putInt(j);
+			}
+			out.putByte('\n');
+
+			for (int c = 0; c < count; c++) {
+				float[] p = ca.getPrototype(c);
+				out.putInt(c);
+				out.putByte(',');
+				out.putInt(sizes[c]);
+				for (int j = 0; j < dim; j++) {
+					out.putByte(',');
+					out.putFloat(p[j]);
+				}
+				out.putByte('\n');
+			}
+		}
+	}
+
+	/// Returns the cluster of every client, -1 if it is in none. There are at least 'clients'
+	/// clients, more if a cluster has a member with a larger index.
+	private static int[] clusterOf(ClusteringAlgorithm ca, int clients)
+	{
+		int[] assignments = ca.assignments();
+		if (assignments.length >= clients)
+			return assignments;
+
+		int[] clusterOf = Arrays.copyOf(assignments, clients);
+		Arrays.fill(clusterOf, assignments.length, clients, -1);
+		return clusterOf;
+	}
+
+	/******************************* ENCODING *********************************/
+
+	/// Makes room for n bytes, writing out the buffer if necessary.
+	private void ensure(int n) throws IOException
+	{
+		if (buffer.remaining() < n)
+			flush();
+	}
+
+	private void flush() throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private void putByte(char b) throws IOException
+	{
+		ensure(1);
+		buffer.put((byte)b);
+	}
+
+	private void putAscii(String s) throws IOException
+	{
+		for (int i = 0; i < s.length(); i++)
+			putByte(s.charAt(i));
+	}
+
+	/// Writes a name as a CSV field, quoted if it contains a separator or a quote.
+	private void putName(String name) throws IOException
+	{
+		boolean quote = false, ascii = true;
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			quote |= (ch == ',' || ch == '"' || ch == '\n' || ch == '\r');
+			ascii &= (ch < 0x80);
+		}
+
+		if (quote)
+			putByte('"');
+		if (ascii) {
+			for (int i = 0; i < name.length(); i++) {
+				char ch = name.charAt(i);
+				if (ch == '"')
+					putByte('"');
+				putByte(ch);
+			}
+		}
+		else {
+			// Rare: encode the whole name
+			byte[] bytes = (quote ? name.replace("\"", "\"\"") : name).getBytes(StandardCharsets.UTF_8);
+			for (byte b : bytes) {
+				ensure(1);
+				buffer.put(b);
+			}
+		}
+		if (quote)
+			putByte('"');
+	}
+
+	private void putInt(int v) throws IOException
+	{
+		putLong(v);
+	}
+
+	private void putLong(long v) throws IOException
+	{
+		ensure(20);
+		if (v < 0) {
+			buffer.put((byte)'-');
+			v = -v;
+		}
+		int start = buffer.position(), end = start;
+		do {
+			buffer.put(end++, (byte)('0' + v % 10));
+			v /= 10;
+		} while (v > 0);
+
+		// The digits were written in reverse order
+		for (int i = start, j = end - 1; i < j; i++, j--) {
+			byte b = buffer.get(i);
+			buffer.put(i, buffer.get(j));
+			buffer.put(j, b);
+		}
+		buffer.position(end);
+	}
+
+	/// Writes v rounded to PRECISION decimals, without trailing zeros.
+	private void putFloat(float v) throws IOException
+	{
+		if (Float.isNaN(v) || Float.isInfinite(v) || Math.abs(v) >= 1e12f) {
+			putAscii(Float.toString(v));
+			return;
+		}
+
+		long scaled = Math.round(Math.abs((double)v) * SCALE);
+		if (scaled == 0) {
+			putByte('0');
+			return;
+		}
+		if (v < 0)
+			putByte('-');
+		putLong(scaled / SCALE);
+
+		long fraction = scaled % SCALE;
+		if (fraction == 0)
+			return;
+		int digits = PRECISION;
+		while (fraction % 10 == 0) {
+			fraction /= 10;
+			digits--;
+		}
+		ensure(1 + PRECISION);
+		buffer.put((byte)'.');
+		int end = buffer.position() + digits;
+		for (int i = end - 1; i >= end - digits; i--) {
+			buffer.put(i, (byte)('0' + fraction % 10));
+			fraction /= 10;
+		}
+		buffer.position(end);
+	}
+
+	public void close() throws IOException
+	{
+		try {
+			flush();
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
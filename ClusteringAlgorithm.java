@@ -1,14 +1,567 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+
 public abstract class ClusteringAlgorithm
 {
+	// Number of rows that are assigned together by one parallel task in predict()
+	public static final int PREDICT_BLOCK = 4096;
+
+	// A row is compared through the sparse kernels when fewer than 1 / SPARSE_RATIO of its elements are non-zero
+	public static final int SPARSE_RATIO = 4;
+
+	// When false, train() and test() do not print progress or results
+	protected boolean verbose = false;
+
+	// Metric used to find the closest prototype
+	protected DistanceMetric metric = Metrics.SQUARED_EUCLIDEAN;
+
+	// When true, train() collapses identical training rows into weighted points, see WeightedRows
+	protected boolean collapseDuplicates = false;
+
+	// When > 0, train() works on a coreset of about this many training rows, see Coreset
+	protected int coresetSize = 0;
+	protected long coresetSeed;
+
+	// Checkpoint written every checkpointEvery iterations of train(), null for none
+	protected String checkpointFile;
+	protected int checkpointEvery;
+
+	// Checkpoint train() continues from, null to start from scratch
+	protected String resumeFile;
+
+	// Receivers of the per-iteration training metrics
+	private List<TrainingListener> listeners = new CopyOnWriteArrayList<TrainingListener>();
+
+	// Start of the current training iteration, see beginIteration()
+	private long iterationStart;
+	private Map<Long, Long> iterationAllocated;
+	private TrainingIterationEvent iterationEvent;
+
 	public abstract boolean train();
 
 	public abstract boolean test();
-	
-	public abstract void setPrefetchThreshold(double prefetchThreshold);    
-	
+
+	public abstract void setPrefetchThreshold(double prefetchThreshold);
+
 	public abstract void showTest();
-	
+
 	public abstract void showMembers();
-	
+
 	public abstract void showPrototypes();
+
+	/// Returns the number of clusters (prototypes) in the model.
+	public abstract int clusterCount();
+
+	/// Returns the prototype of cluster c, with 0 <= c < clusterCount().
+	public abstract float[] getPrototype(int c);
+
+	/// Returns the number of training points that are member of cluster c.
+	public abstract int clusterSize(int c);
+
+	/// Returns the indices of the training points that are member of cluster c.
+	public abstract Set<Integer> getMembers(int c);
+
+	/// Returns the cluster of every training point, -1 for a point in no cluster, with one entry
+	/// per point up to the largest member. Visits the members of every cluster once; algorithms
+	/// that store an assignment array return a copy of it instead.
+	public int[] assignments()
+	{
+		int count = clusterCount(), points = 0;
+		List<Set<Integer>> members = new ArrayList<Set<Integer>>(count);
+		for (int c = 0; c < count; c++) {
+			members.add(getMembers(c));
+			for (Integer i : members.get(c))
+				points = Math.max(points, i + 1);
+		}
+
+		int[] assignments = new int[points];
+		Arrays.fill(assignments, -1);
+		for (int c = 0; c < count; c++)
+			for (Integer i : members.get(c))
+				assignments[i] = c;
+		return assignments;
+	}
+
+	/// Returns clusterSize(c) of every cluster. Algorithms whose clusterSize() scans all points
+	/// count them in one pass instead.
+	public int[] clusterSizes()
+	{
+		int[] sizes = new int[clusterCount()];
+		for (int c = 0; c < sizes.length; c++)
+			sizes[c] = clusterSize(c);
+		return sizes;
+	}
+
+	/// Counts the points of every cluster in an assignment array, skipping -1.
+	protected static int[] clusterSizes(int[] assignments, int count)
+	{
+		int[] sizes = new int[count];
+		for (int a : assignments)
+			if (a >= 0)
+				sizes[a]++;
+		return sizes;
+	}
+
+	// A trained model as it is stored on disk: the prototypes and the size of every cluster.
+	// The sizes let a warm-started model weigh its old prototypes against new data.
+	public static class Model
+	{
+		float[][] prototypes;
+		int[] sizes;
+
+		public Model(float[][] prototypes, int[] sizes)
+		{
+			this.prototypes = prototypes;
+			this.sizes = sizes;
+		}
+
+		public int dim()
+		{
+			return (prototypes.length == 0 ? 0 : prototypes[0].length);
+		}
+
+		/// Reads a model written by saveModel().
+		public static Model load(String fileName) throws IOException
+		{
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16))) {
+				int count = in.readInt(), dim = in.readInt();
+				float[][] prototypes = new float[count][dim];
+				int[] sizes = new int[count];
+
+				for (int c = 0; c < count; c++) {
+					sizes[c] = in.readInt();
+					for (int j = 0; j < dim; j++)
+						prototypes[c][j] = in.readFloat();
+				}
+				return new Model(prototypes, sizes);
+			}
+		}
+	}
+
+	/******************************* PREDICTION METHODS ****************************/
+
+	/// Returns the index of the cluster whose prototype is closest to v, or -1 if there are no clusters.
+	/// Unlike test(), this does not depend on v being a row of the training data.
+	public int predict(float[] v)
+	{
+		int best = -1;
+		double d, min = Double.MAX_VALUE;
+
+		for (int c = 0; c < clusterCount(); c++) {
+			if ((d = metric.distance(v, getPrototype(c))) < min) {
+				min = d;
+				best = c;
+			}
+		}
+
+		return best;
+	}
+
+	/// Assigns every row of data to its closest cluster. out[i] receives the cluster of data[i].
+	/// Rows are processed in parallel blocks of PREDICT_BLOCK.
+	public void predict(float[][] data, int[] out)
+	{
+		predict(data, data.length, out);
+	}
+
+	/// As predict(float[][], int[]), for data held in a List (e.g. the Vectors read by RunClustering).
+	public void predict(List<float[]> data, int[] out)
+	{
+		float[][] rows = data.toArray(new float[data.size()][]);
+		predict(rows, rows.length, out);
+	}
+
+	/// Reads vectors from inFileName (same format as train.dat) and writes the cluster index of
+	/// every row, one per line, to outFileName. The file is streamed in blocks, so it does not
+	/// have to fit in memory. Returns the number of rows assigned.
+	public int predict(String inFileName, String outFileName) throws IOException
+	{
+		try (Reader in = new FileReader(inFileName);
+		     Writer out = new FileWriter(outFileName)) {
+			return predict(in, out, inFileName);
+		}
+	}
+
+	/// As predict(String, String), from a Reader to a Writer, for example a socket or a pipe. The
+	/// output is flushed but neither stream is closed.
+	public int predict(Reader in, Writer out) throws IOException
+	{
+		return predict(in, out, "input");
+	}
+
+	/// Throws an IOException naming 'source' and the line number for a line that is not a number
+	/// list or whose length differs from the prototypes, such as a blank line.
+	private int predict(Reader in, Writer out, String source) throws IOException
+	{
+		int total = 0;
+		int dim = (clusterCount() == 0 ? -1 : getPrototype(0).length);
+		String[] lines = new String[PREDICT_BLOCK * Runtime.getRuntime().availableProcessors()];
+		float[][] rows = new float[lines.length][];
+		int[] assigned = new int[lines.length];
+
+		BufferedReader br = new BufferedReader(in, 1 << 16);
+		BufferedWriter bw = new BufferedWriter(out, 1 << 16);
+		int m;
+		do {
+			/// Read one block of lines, then parse and assign it in parallel.
+			String line = null;
+			for (m = 0; m < lines.length && (line = br.readLine()) != null; m++)
+				lines[m] = line;
+
+			final int count = m;
+			IntStream.range(0, count).parallel().forEach(i -> {
+				try {
+					rows[i] = parseVector(lines[i]);
+				}
+				catch (NumberFormatException e) {
+					rows[i] = null;
+				}
+			});
+			for (int i = 0; i < count; i++) {
+				if (rows[i] == null)
+					throw new IOException(source + ":" + (total + i + 1) + ": not a list of numbers");
+				if (dim >= 0 && rows[i].length != dim)
+					throw new IOException(source + ":" + (total + i + 1) + ": " + rows[i].length + " values, expected " + dim);
+			}
+			predict(rows, count, assigned);
+
+			for (int i = 0; i < count; i++) {
+				bw.write(Integer.toString(assigned[i]));
+				bw.newLine();
+			}
+			total += count;
+		} while (m == lines.length);
+
+		bw.flush();
+		return total;
+	}
+
+	/// Assigns the first m rows of data, splitting them into blocks that are processed in parallel.
+	/// The norms of the prototypes are computed once, and rows that are mostly zero are compared
+	/// through the sparse kernel of the metric. All batch predictions go through this method.
+	protected void predict(float[][] data, int m, int[] out)
+	{
+		int blocks = (m + PREDICT_BLOCK - 1) / PREDICT_BLOCK;
+		int count = clusterCount();
+		float[][] prototypes = new float[count][];
+		double[] norms = new double[count];
+		for (int c = 0; c < count; c++) {
+			prototypes[c] = getPrototype(c);
+			norms[c] = metric.norm(prototypes[c]);
+		}
+
+		IntStream.range(0, blocks).parallel().forEach(b -> {
+			int end = Math.min(m, (b + 1) * PREDICT_BLOCK);
+			for (int i = b * PREDICT_BLOCK; i < end; i++)
+				out[i] = closest(data[i], prototypes, norms);
+		});
+	}
+
+	/// Returns the index of the prototype closest to v, given the norms of the prototypes.
+	private int closest(float[] v, float[][] prototypes, double[] norms)
+	{
+		int best = -1;
+		double d, min = Double.MAX_VALUE;
+		double vNorm = metric.norm(v);
+		int[] idx = Metrics.nonZeroIndices(v);
+
+		if (idx.length * SPARSE_RATIO < v.length) {
+			float[] val = Metrics.gather(v, idx);
+			for (int c = 0; c < prototypes.length; c++)
+				if ((d = metric.distance(idx, val, vNorm, prototypes[c], norms[c])) < min) {
+					min = d;
+					best = c;
+				}
+		}
+		else {
+			for (int c = 0; c < prototypes.length; c++)
+				if ((d = metric.distance(v, vNorm, prototypes[c], norms[c])) < min) {
+					min = d;
+					best = c;
+				}
+		}
+		return best;
+	}
+
+	/// Selects the metric used to find the closest prototype, in training as well as in predict().
+	public void setMetric(DistanceMetric metric)
+	{
+		this.metric = metric;
+	}
+
+	public DistanceMetric getMetric()
+	{
+		return metric;
+	}
+
+	/// Makes train() work on the distinct training rows, each weighted by the number of clients that
+	/// have it, instead of on every row. Memberships, test() and the cluster sizes still refer to the
+	/// original clients. Off by default.
+	public void setCollapseDuplicates(boolean collapseDuplicates)
+	{
+		this.collapseDuplicates = collapseDuplicates;
+	}
+
+	/// Makes train() work on a coreset of about 'size' weighted training rows drawn with the given
+	/// seed, instead of on all rows; afterwards all clients are assigned to their closest cluster.
+	/// A size of 0 turns it off again. Takes precedence over setCollapseDuplicates().
+	public void setCoreset(int size, long seed)
+	{
+		this.coresetSize = size;
+		this.coresetSeed = seed;
+	}
+
+	/// Returns the weighted points train() should work on instead of trainData, as selected by
+	/// setCoreset() and setCollapseDuplicates(), or null to train on the rows themselves.
+	protected WeightedRows weightedRows(List<float[]> trainData)
+	{
+		WeightedRows rows = null;
+		if (coresetSize > 0)
+			rows = Coreset.build(trainData, coresetSize, coresetSeed);
+		else if (collapseDuplicates)
+			rows = WeightedRows.collapse(trainData);
+
+		if (rows != null && verbose)
+			System.out.format("Training on %d weighted points for %d rows\n", rows.size(), rows.clientCount());
+		return rows;
+	}
+
+	/// Makes train() write a checkpoint to fileName every 'every' iterations, in the background.
+	/// Supported by KMeans and Kohonen, but not by progressive Kohonen training (setProgressive()),
+	/// whose train() then throws IllegalStateException; null turns it off.
+	public void setCheckpoint(String fileName, int every)
+	{
+		this.checkpointFile = fileName;
+		this.checkpointEvery = every;
+	}
+
+	/// Makes train() continue from a checkpoint written by an earlier run with the same data and
+	/// parameters. The result is the same as that of the uninterrupted run. Supported by KMeans and
+	/// Kohonen except in progressive training, like setCheckpoint(); null starts from scratch again.
+	public void resumeFrom(String fileName)
+	{
+		this.resumeFile = fileName;
+	}
+
+	/// Returns the Checkpointer selected by setCheckpoint(), null if there is none.
+	protected Checkpointer checkpointer()
+	{
+		return (checkpointFile == null ? null : new Checkpointer(checkpointFile, getClass().getSimpleName(), checkpointEvery));
+	}
+
+	/// Turns progress and result printing of train() and test() on or off. Off by default.
+	public void setVerbose(boolean verbose)
+	{
+		this.verbose = verbose;
+	}
+
+	/// Returns {hitrate, accuracy} when every client i is assigned to the cluster closest to
+	/// trainRows[i] and the prototype is compared to its requests in testRows[i].
+	/// URLs whose prototype value exceeds prefetchThreshold are prefetched.
+	public double[] score(List<float[]> trainRows, List<float[]> testRows, double prefetchThreshold)
+	{
+		int n = testRows.size();
+		int[] assigned = new int[n];
+		predict(trainRows.subList(0, n), assigned);
+
+		return score(assigned, testRows, prefetchThreshold);
+	}
+
+	/// Returns {hitrate, accuracy} when client i is assigned to cluster assigned[i] (-1 for none) and
+	/// the prototype is compared to its requests in testRows[i].
+	public double[] score(int[] assigned, List<float[]> testRows, double prefetchThreshold)
+	{
+		int n = testRows.size();
+		long prefetched = 0, hits = 0, requests = 0;
+
+		// getPrototype() may build a new array every call, so fetch every prototype once
+		float[][] prototypes = new float[clusterCount()][];
+		for (int i = 0; i < n; i++) {
+			float[] v = testRows.get(i);
+			int c = assigned[i];
+			if (c >= 0 && prototypes[c] == null)
+				prototypes[c] = getPrototype(c);
+			float[] p = (c < 0 ? null : prototypes[c]);
+
+			for (int j = 0; j < v.length; j++) {
+				boolean requested = (v[j] != 0);
+				boolean wasPrefetched = (p != null && p[j] > prefetchThreshold);
+
+				requests += (requested ? 1 : 0);
+				if (wasPrefetched) {
+					prefetched++;
+					hits += (requested ? 1 : 0);
+				}
+			}
+		}
+
+		return new double[] { (double)hits / requests, (double)hits / prefetched };
+	}
+
+	/******************************* TELEMETRY METHODS *****************************/
+
+	public void addTrainingListener(TrainingListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public void removeTrainingListener(TrainingListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/// Marks the start of a training iteration. Must be called on the training thread.
+	protected void beginIteration()
+	{
+		iterationEvent = new TrainingIterationEvent();
+		iterationEvent.begin();
+		iterationStart = System.nanoTime();
+		iterationAllocated = allocatedBytes();
+	}
+
+	/// Marks the end of the iteration started by beginIteration() and publishes its metrics to the
+	/// listeners and, when enabled, as a TrainingIterationEvent to Java Flight Recorder.
+	protected void endIteration(int iteration, long distanceEvaluations, long reassigned, double error)
+	{
+		long wallNanos = System.nanoTime() - iterationStart;
+		long bytesAllocated = allocatedSince(iterationAllocated);
+
+		TrainingIterationEvent event = iterationEvent;
+		event.end();
+		if (event.shouldCommit()) {
+			event.algorithm = getClass().getSimpleName();
+			event.iteration = iteration;
+			event.distanceEvaluations = distanceEvaluations;
+			event.reassigned = reassigned;
+			event.error = error;
+			event.bytesAllocated = bytesAllocated;
+			event.commit();
+		}
+
+		if (listeners.isEmpty())
+			return;
+
+		TrainingMetrics metrics = new TrainingMetrics(getClass().getSimpleName(), iteration, wallNanos, distanceEvaluations, reassigned, error, bytesAllocated);
+		for (TrainingListener listener : listeners)
+			listener.iteration(metrics);
+	}
+
+	/// Bytes allocated so far by every live thread, by thread id, or null if the JVM does not support
+	/// measuring it. All threads are counted because the parallel implementations do their work on
+	/// ForkJoin workers rather than on the training thread.
+	private static Map<Long, Long> allocatedBytes()
+	{
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if (!bean.isThreadAllocatedMemoryEnabled())
+			return null;
+
+		long[] ids = bean.getAllThreadIds();
+		long[] bytes = bean.getThreadAllocatedBytes(ids);
+		Map<Long, Long> allocated = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++)
+			if (bytes[i] >= 0)
+				allocated.put(ids[i], bytes[i]);
+		return allocated;
+	}
+
+	/// Bytes allocated by all threads since the snapshot 'before' of allocatedBytes(), or -1 if the
+	/// JVM cannot tell. Threads started since count in full; threads that ended are lost.
+	private static long allocatedSince(Map<Long, Long> before)
+	{
+		Map<Long, Long> now = allocatedBytes();
+		if (before == null || now == null)
+			return -1;
+
+		long sum = 0;
+		for (Map.Entry<Long, Long> e : now.entrySet())
+			sum += Math.max(0, e.getValue() - before.getOrDefault(e.getKey(), 0L));
+		return sum;
+	}
+
+	/******************************* MODEL METHODS *********************************/
+
+	/// Returns a copy of the current prototypes and cluster sizes.
+	public Model getModel()
+	{
+		int count = clusterCount();
+		float[][] prototypes = new float[count][];
+		for (int c = 0; c < count; c++)
+			prototypes[c] = getPrototype(c).clone();
+		return new Model(prototypes, clusterSizes());
+	}
+
+	/// Writes the prototypes and cluster sizes to fileName, so a later run can warm-start from them.
+	public void saveModel(String fileName) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16))) {
+			int count = clusterCount();
+			int[] sizes = clusterSizes();
+			out.writeInt(count);
+			out.writeInt(count == 0 ? 0 : getPrototype(0).length);
+
+			for (int c = 0; c < count; c++) {
+				float[] p = getPrototype(c);
+				out.writeInt(sizes[c]);
+				for (int j = 0; j < p.length; j++)
+					out.writeFloat(p[j]);
+			}
+		}
+	}
+
+	/// Returns {mean, max} of the Euclidean distances between the prototypes of 'before' and the
+	/// current prototypes, i.e. how far the model drifted while retraining.
+	public double[] drift(Model before)
+	{
+		double sum = 0, max = 0;
+		int count = clusterCount();
+		checkModel(before, count, (count == 0 ? before.dim() : getPrototype(0).length));
+
+		for (int c = 0; c < count; c++) {
+			double d = Math.sqrt(squaredDistance(before.prototypes[c], getPrototype(c)));
+			sum += d;
+			max = Math.max(max, d);
+		}
+		return new double[] { (count == 0 ? 0 : sum / count), max };
+	}
+
+	/// Throws if the model does not have the given shape.
+	protected static void checkModel(Model model, int count, int dim)
+	{
+		if (model.prototypes.length != count || model.dim() != dim)
+			throw new IllegalArgumentException("model has " + model.prototypes.length + " prototypes of dimension "
+				+ model.dim() + ", expected " + count + " of dimension " + dim);
+	}
+
+	/******************************* HELPER METHODS ********************************/
+
+	/// Squared Euclidean distance between 'a' and 'b'. Enough for comparing distances, as sqrt is monotone.
+	public static double squaredDistance(float[] a, float[] b)
+	{
+		int n = (a.length < b.length ? a.length : b.length);
+		double d = 0;
+
+		for (int i = 0; i < n; i++) {
+			double t = b[i] - a[i];
+			d += t * t;
+		}
+
+		return d;
+	}
+
+	/// Parses one line of a data file (values separated by whitespace or commas).
+	public static float[] parseVector(String line)
+	{
+		StringTokenizer st = new StringTokenizer(line, " \t\n\r\f,");
+		float[] data = new float[st.countTokens()];
+
+		for (int i = 0; i < data.length; i++)
+			data[i] = Float.parseFloat(st.nextToken());
+
+		return data;
+	}
 }
@@ -0,0 +1,256 @@
+import java.io.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class Coreset
+{
+	// A lightweight coreset: a small weighted sample of the training rows on which the k-means cost
+	// of any set of prototypes is close to the cost on all rows. It is built in two streaming passes:
+	//
+	//   1. the mean mu of the rows and the total squared distance D = sum ||x - mu||^2, computed
+	//      from the sum and the sum of squared norms of the rows
+	//   2. every row x is kept independently with probability p(x) = min(1, m * q(x)), where
+	//        q(x) = 1/2 * 1/n + 1/2 * ||x - mu||^2 / D
+	//      and a kept row gets weight 1 / p(x)
+	//
+	// so rows far from the mean, which matter most for the cost, are kept more often. The expected
+	// number of rows kept is at most m. Weights are rounded randomly to one of the two neighbouring
+	// integers, which keeps them unbiased; rows whose weight rounds to 0 are dropped. The result is a
+	// WeightedRows that is not complete, so the algorithms assign all clients after training.
+	//
+	// Usage: java Coreset kmeans|kohonen|leader parameter size [traindata testdata] [threshold=0.5] [seed=1]
+	//        trains the algorithm on all rows and on a coreset of about 'size' rows and compares them.
+	//        parameter is k for kmeans, the map size n for kohonen (10 epochs) and maxDis for leader.
+
+	// Receives the rows of a pass in order
+	private interface RowVisitor
+	{
+		void row(int i, float[] v);
+	}
+
+	// Training rows that can be passed over more than once
+	private interface RowSource
+	{
+		int rows();
+
+		void forEachRow(RowVisitor visitor) throws IOException;
+	}
+
+	/// Builds a coreset of about 'size' of the rows. The kept rows are shared with the list.
+	public static WeightedRows build(List<float[]> rows, int size, long seed)
+	{
+		try {
+			return build(new RowSource() {
+				public int rows()
+				{
+					return rows.size();
+				}
+
+				public void forEachRow(RowVisitor visitor)
+				{
+					for (int i = 0; i < rows.size(); i++)
+						visitor.row(i, rows.get(i));
+				}
+			}, size, seed, false);
+		}
+		catch (IOException e) {
+			// Lists do not throw
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/// Builds a coreset of about 'size' of the rows of a matrix file, in two passes over the file.
+	/// Only the kept rows and one int per row are held in memory.
+	public static WeightedRows build(MatrixFile file, int size, long seed) throws IOException
+	{
+		if (file.rows() > Integer.MAX_VALUE)
+			throw new IOException("too many rows for the client mapping");
+
+		return build(new RowSource() {
+			public int rows()
+			{
+				return (int)file.rows();
+			}
+
+			public void forEachRow(RowVisitor visitor) throws IOException
+			{
+				file.forEachBlock(block -> {
+					for (int i = 0; i < block.count; i++)
+						visitor.row((int)block.firstRow + i, block.rows[i]);
+				});
+			}
+		}, size, seed, true);
+	}
+
+	/// Builds a coreset of the rows on which the cost of any k prototypes is within a factor
+	/// 1 +- epsilon of the cost on all rows with probability 1 - delta; see size().
+	public static WeightedRows build(List<float[]> rows, double epsilon, double delta, int k, long seed)
+	{
+		return build(rows, size(rows.isEmpty() ? 0 : rows.get(0).length, k, epsilon, delta), seed);
+	}
+
+	/// Builds a coreset of the rows of a matrix file for relative error epsilon with probability
+	/// 1 - delta; see size().
+	public static WeightedRows build(MatrixFile file, double epsilon, double delta, int k, long seed) throws IOException
+	{
+		return build(file, size(file.dim(), k, epsilon, delta), seed);
+	}
+
+	/// Returns the coreset size m = (dim * k * ln k + ln(1 / delta)) / epsilon^2 that the lightweight
+	/// coreset bound (Bachem, Lucic and Krause, 2018) gives for relative error epsilon on the cost of
+	/// any k prototypes with probability 1 - delta, with the constant of the bound taken as 1. It is a
+	/// worst case bound: on real data much smaller coresets usually reach epsilon, and a size of at
+	/// least twice the row count keeps every row with weight 1.
+	public static int size(int dim, int k, double epsilon, double delta)
+	{
+		if (!(epsilon > 0 && epsilon <= 1))
+			throw new IllegalArgumentException("epsilon " + epsilon + " is not in (0, 1]");
+		if (!(delta > 0 && delta < 1))
+			throw new IllegalArgumentException("delta " + delta + " is not in (0, 1)");
+		if (k < 1)
+			throw new IllegalArgumentException("k " + k + " is less than 1");
+
+		double m = ((double)dim * k * Math.max(1, Math.log(k)) + Math.log(1 / delta)) / (epsilon * epsilon);
+		return (int)Math.min(Integer.MAX_VALUE, Math.ceil(m));
+	}
+
+	/// Builds the coreset from source; copyRows must be set if the source reuses its row arrays.
+	private static WeightedRows build(RowSource source, int size, long seed, boolean copyRows) throws IOException
+	{
+		int n = source.rows();
+		Random random = new Random(seed);
+
+		/// Pass 1: mean and total squared distance to the mean.
+		double[][] sum = { null };
+		double[] sumOfSquares = { 0 };
+		source.forEachRow((i, v) -> {
+			if (sum[0] == null)
+				sum[0] = new double[v.length];
+			for (int j = 0; j < v.length; j++) {
+				sum[0][j] += v[j];
+				sumOfSquares[0] += (double)v[j] * v[j];
+			}
+		});
+
+		Vector<float[]> points = new Vector<float[]>();
+		int[] pointOf = new int[n];
+		if (n == 0)
+			return new WeightedRows(points, new int[0], pointOf);
+
+		float[] mean = new float[sum[0].length];
+		double meanSquare = 0;
+		for (int j = 0; j < mean.length; j++) {
+			mean[j] = (float)(sum[0][j] / n);
+			meanSquare += (sum[0][j] / n) * (sum[0][j] / n);
+		}
+		double total = Math.max(0, sumOfSquares[0] - n * meanSquare);
+
+		/// Pass 2: keep every row with probability min(1, size * q(x)), weighted by the inverse.
+		List<Integer> weights = new ArrayList<Integer>();
+		source.forEachRow((i, v) -> {
+			double q = (total > 0 ? 0.5 / n + 0.5 * Kernels.INSTANCE.squaredDistance(v, mean) / total : 1.0 / n);
+			double p = Math.min(1, size * q);
+
+			pointOf[i] = -1;
+			if (random.nextDouble() >= p)
+				return;
+
+			double w = 1 / p;
+			int weight = (int)w + (random.nextDouble() < w - Math.floor(w) ? 1 : 0);
+			if (weight > 0) {
+				pointOf[i] = points.size();
+				points.add(copyRows ? v.clone() : v);
+				weights.add(weight);
+			}
+		});
+
+		int[] w = new int[weights.size()];
+		for (int p = 0; p < w.length; p++)
+			w[p] = weights.get(p);
+		return new WeightedRows(points, w, pointOf);
+	}
+
+	/// Returns the k-means cost of the prototypes of ca on the rows: the sum of the squared Euclidean
+	/// distances of every row to its closest prototype, where row i counts weights[i] times (all
+	/// rows once if weights is null). Prototypes with NaN or infinite values, such as those of empty
+	/// clusters, are skipped; the cost is NaN if no prototype is left.
+	public static double cost(ClusteringAlgorithm ca, List<float[]> rows, int[] weights)
+	{
+		List<float[]> finite = new ArrayList<float[]>();
+		for (int c = 0; c < ca.clusterCount(); c++) {
+			float[] p = ca.getPrototype(c);
+			boolean keep = true;
+			for (float x : p)
+				keep &= Float.isFinite(x);
+			if (keep)
+				finite.add(p);
+		}
+		if (finite.isEmpty())
+			return Double.NaN;
+
+		float[][] prototypes = finite.toArray(new float[0][]);
+		return IntStream.range(0, rows.size()).parallel().mapToDouble(i -> {
+			float[] v = rows.get(i);
+			double min = Double.MAX_VALUE;
+			for (float[] p : prototypes)
+				min = Math.min(min, Kernels.INSTANCE.squaredDistance(v, p));
+			return (weights == null ? 1 : weights[i]) * min;
+		}).sum();
+	}
+
+	static ClusteringAlgorithm create(String algorithm, double parameter, Vector<float[]> trainData, Vector<float[]> testData, long seed)
+	{
+		int dim = trainData.get(0).length;
+		if (algorithm.equals("kmeans"))
+			return new KMeans((int)parameter, trainData, testData, dim, seed);
+		if (algorithm.equals("kohonen"))
+			return new Kohonen((int)parameter, 10, trainData, testData, dim, seed);
+		if (algorithm.equals("leader"))
+			return new LeaderFollower(parameter, trainData, testData, dim);
+		throw new IllegalArgumentException("unknown algorithm '" + algorithm + "'");
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 3 || args.length == 4) {
+			System.out.println("usage: java Coreset kmeans|kohonen|leader parameter size [traindata testdata] [threshold] [seed]");
+			System.exit(1);
+		}
+
+		String algorithm = args[0];
+		double parameter = Double.parseDouble(args[1]);
+		int size = Integer.parseInt(args[2]);
+		Vector<float[]> trainData = RunClustering.readMatrix(args.length > 4 ? args[3] : "train.dat");
+		Vector<float[]> testData = RunClustering.readMatrix(args.length > 4 ? args[4] : "test.dat");
+		double threshold = (args.length > 5 ? Double.parseDouble(args[5]) : 0.5);
+		long seed = (args.length > 6 ? Long.parseLong(args[6]) : 1);
+
+		ClusteringAlgorithm full = create(algorithm, parameter, trainData, testData, seed);
+		long start = System.nanoTime();
+		full.train();
+		long fullNanos = System.nanoTime() - start;
+
+		ClusteringAlgorithm sampled = create(algorithm, parameter, trainData, testData, seed);
+		sampled.setCoreset(size, seed);
+		start = System.nanoTime();
+		sampled.train();
+		long sampledNanos = System.nanoTime() - start;
+
+		/// The same seed gives the same coreset as the one sampled.train() used.
+		WeightedRows coreset = build(trainData, size, seed);
+		double fullCost = cost(full, trainData, null);
+		double sampledCost = cost(sampled, trainData, null);
+		double coresetCost = cost(sampled, coreset.points, coreset.weights);
+
+		double[] fullScore = full.score(trainData, testData, threshold);
+		double[] sampledScore = sampled.score(trainData, testData, threshold);
+
+		System.out.format("Coreset of %d rows for %d rows, %d clusters (all rows) and %d (coreset)\n",
+			coreset.size(), trainData.size(), full.clusterCount(), sampled.clusterCount());
+		System.out.format("%-10s %12s %12s %12s %16s\n", "training", "seconds", "hitrate", "accuracy", "cost");
+		System.out.format("%-10s %12.3f %12.7f %12.7f %16.1f\n", "all rows", fullNanos / 1e9, fullScore[0], fullScore[1], fullCost);
+		System.out.format("%-10s %12.3f %12.7f %12.7f %16.1f\n", "coreset", sampledNanos / 1e9, sampledScore[0], sampledScore[1], sampledCost);
+		System.out.format("Coreset error on the coreset prototypes: %.4f (cost on coreset %.1f)\n",
+			Math.abs(coresetCost - sampledCost) / sampledCost, coresetCost);
+	}
+}
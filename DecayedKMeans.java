@@ -0,0 +1,524 @@
+import java.io.*;
+import java.util.*;
+
+public class DecayedKMeans extends ClusteringAlgorithm
+{
+	// K-means over a stream of timed requests, for client interests that drift. The value of URL u
+	// in the vector of a client decays exponentially with the time since the client last requested
+	// u: it is 1 right after the request and halves every 'halfLife'. A prototype is the mean of the
+	// decayed vectors of its members, so it is in [0, 1] like the prototypes trained on train.dat and
+	// the prefetch threshold keeps its meaning.
+	//
+	// All values decay by the same factor, so they are stored in units of a global scale: a value
+	// stored as s means s * exp(-lambda * (now - origin)). Time passing then changes nothing that is
+	// stored; a request changes one client value and one cluster sum. Every cluster keeps the sum of
+	// its members' vectors and the squared norm of that sum, so the prototypes are always current.
+	//
+	// Requests are collected into windows. advance() ends a window: clients idle for longer than
+	// 'window' are evicted and their entries subtracted from their cluster, entries of the changed
+	// clients that are older than the window are dropped, and only the changed clients are moved to
+	// their closest cluster. The work per window is proportional to the changes, and memory to the
+	// clients and URLs seen within the window (plus the k dense cluster sums).
+	//
+	// Usage: java DecayedKMeans k halfLife window interval requests.log [threshold=0.5]
+	//        replays a log of "time client url" lines (url is a column index), calling advance()
+	//        every 'interval', and reports the hitrate of prefetching each request from the
+	//        prototype of the client's cluster just before the request is applied.
+
+	// The stored values are rescaled once the global scale exceeds e^REBASE
+	private static final double REBASE = 30;
+
+	// A client, with its decayed request values in stored units, sorted by URL
+	static class Client
+	{
+		int id, cluster = -1;
+		double lastTime;
+		boolean dirty;
+
+		int nnz;
+		int[] urls = new int[4];
+		float[] values = new float[4];
+
+		// Squared norm of the stored values
+		double norm;
+
+		Client(int id)
+		{
+			this.id = id;
+		}
+	}
+
+	// Number of clusters
+	private int k;
+
+	// Dimensionality of the vectors
+	private int dim;
+
+	// Decay rate (ln 2 / half life) and the time after which idle clients and old entries expire
+	private double lambda, window;
+
+	// Time of the global scale and current time
+	private double origin, now;
+
+	// Sum of the stored member vectors of every cluster, its squared norm and the number of members
+	private double[][] sums;
+	private double[] sumNorms;
+	private int[] sizes;
+
+	// All clients, least recently requested first: request() reinserts the client at the end
+	private LinkedHashMap<Integer, Client> clients = new LinkedHashMap<Integer, Client>();
+
+	// Clients with requests in the current window
+	private List<Client> changed = new ArrayList<Client>();
+	private int windows;
+
+	// Threshold above which the corresponding html is prefetched
+	private double prefetchThreshold;
+
+	private Vector<float[]> trainData;
+	private Vector<float[]> testData;
+
+	// Results of test()
+	private double hitrate;
+	private double accuracy;
+
+	public DecayedKMeans(int k, int dim, double halfLife, double window)
+	{
+		this(k, new Vector<float[]>(), new Vector<float[]>(), dim, halfLife, window);
+	}
+
+	/// Variant that can also be trained on a snapshot with train() and scored with test().
+	public DecayedKMeans(int k, Vector<float[]> trainData, Vector<float[]> testData, int dim, double halfLife, double window)
+	{
+		this.k = k;
+		this.dim = dim;
+		this.trainData = trainData;
+		this.testData = testData;
+		this.lambda = Math.log(2) / halfLife;
+		this.window = window;
+		prefetchThreshold = 0.5;
+
+		sums = new double[k][dim];
+		sumNorms = new double[k];
+		sizes = new int[k];
+	}
+
+	/******************************* STREAMING METHODS ****************************/
+
+	/// Records that client requested url at the given time. Times must not decrease.
+	public void request(int client, int url, double time)
+	{
+		if (time < now)
+			throw new IllegalArgumentException("request at " + time + " before " + now);
+		now = time;
+		rebaseIfNeeded();
+
+		Client c = clients.remove(client);
+		if (c == null)
+			c = new Client(client);
+		clients.put(client, c);
+		c.lastTime = time;
+		set(c, url, (float)Math.exp(lambda * (time - origin)));
+		markChanged(c);
+	}
+
+	/// Ends the current window at the given time: evicts expired clients and moves the clients
+	/// that changed to their closest cluster. Returns the number of clients that changed cluster.
+	public int advance(double time)
+	{
+		now = Math.max(now, time);
+		rebaseIfNeeded();
+		beginIteration();
+
+		/// Evict the clients that have been idle for longer than the window.
+		double expiry = now - window;
+		Iterator<Client> it = clients.values().iterator();
+		while (it.hasNext()) {
+			Client c = it.next();
+			if (c.lastTime >= expiry)
+				break;
+			move(c, -1);
+			c.dirty = false;
+			it.remove();
+		}
+
+		/// Move the changed clients to their closest cluster.
+		float oldest = (float)Math.exp(lambda * (expiry - origin));
+		double scale = Math.exp(-2 * lambda * (now - origin));
+		long evaluations = 0;
+		int reassigned = 0, count = 0;
+		double error = 0;
+
+		for (Client c : changed) {
+			if (!c.dirty)
+				continue;
+			c.dirty = false;
+			trim(c, oldest);
+
+			double[] distance = { 0 };
+			int best = closest(c, distance);
+			evaluations += k;
+			if (best != c.cluster) {
+				move(c, best);
+				reassigned++;
+			}
+			error += scale * distance[0];
+			count++;
+		}
+		changed.clear();
+
+		endIteration(windows++, evaluations, reassigned, (count == 0 ? 0 : error / count));
+		if (verbose)
+			System.out.format("Window %d at %.1f: %d clients, %d changed, %d reassigned\n", windows, now, clients.size(), count, reassigned);
+		return reassigned;
+	}
+
+	/// Returns the decayed value of URL url for client, 0 if unknown.
+	public double value(int client, int url)
+	{
+		Client c = clients.get(client);
+		int pos = (c == null ? -1 : Arrays.binarySearch(c.urls, 0, c.nnz, url));
+		return (pos < 0 ? 0 : c.values[pos] * Math.exp(-lambda * (now - origin)));
+	}
+
+	/// Returns the cluster of client, -1 if it is unknown or not assigned yet.
+	public int clusterOf(int client)
+	{
+		Client c = clients.get(client);
+		return (c == null ? -1 : c.cluster);
+	}
+
+	/// Returns the current prototype value of url in cluster c, without building the prototype.
+	public double prototypeValue(int c, int url)
+	{
+		return (sizes[c] == 0 ? 0 : Math.exp(-lambda * (now - origin)) * sums[c][url] / sizes[c]);
+	}
+
+	/// Number of clients held.
+	public int clientCount()
+	{
+		return clients.size();
+	}
+
+	private void markChanged(Client c)
+	{
+		if (!c.dirty) {
+			c.dirty = true;
+			changed.add(c);
+		}
+	}
+
+	/// Sets the stored value of url in client c and updates the sum of its cluster.
+	private void set(Client c, int url, float value)
+	{
+		int pos = Arrays.binarySearch(c.urls, 0, c.nnz, url);
+		float old = 0;
+		if (pos >= 0)
+			old = c.values[pos];
+		else {
+			pos = -pos - 1;
+			if (c.nnz == c.urls.length) {
+				c.urls = Arrays.copyOf(c.urls, 2 * c.nnz);
+				c.values = Arrays.copyOf(c.values, 2 * c.nnz);
+			}
+			System.arraycopy(c.urls, pos, c.urls, pos + 1, c.nnz - pos);
+			System.arraycopy(c.values, pos, c.values, pos + 1, c.nnz - pos);
+			c.urls[pos] = url;
+			c.nnz++;
+		}
+		c.values[pos] = value;
+		c.norm += (double)value * value - (double)old * old;
+
+		if (c.cluster >= 0)
+			addToSum(c.cluster, url, value - old);
+	}
+
+	/// Drops the entries of c whose stored value is below 'oldest', i.e. older than the window.
+	private void trim(Client c, float oldest)
+	{
+		int kept = 0;
+		for (int i = 0; i < c.nnz; i++) {
+			if (c.values[i] >= oldest) {
+				c.urls[kept] = c.urls[i];
+				c.values[kept++] = c.values[i];
+				continue;
+			}
+			c.norm -= (double)c.values[i] * c.values[i];
+			if (c.cluster >= 0)
+				addToSum(c.cluster, c.urls[i], -c.values[i]);
+		}
+		c.nnz = kept;
+	}
+
+	private void addToSum(int cluster, int url, double delta)
+	{
+		double s = sums[cluster][url];
+		sumNorms[cluster] += 2 * s * delta + delta * delta;
+		sums[cluster][url] = s + delta;
+	}
+
+	/// Moves client c to cluster 'to' (-1 for none), updating the sums of both clusters.
+	private void move(Client c, int to)
+	{
+		if (c.cluster >= 0) {
+			for (int i = 0; i < c.nnz; i++)
+				addToSum(c.cluster, c.urls[i], -c.values[i]);
+			sizes[c.cluster]--;
+		}
+		if (to >= 0) {
+			for (int i = 0; i < c.nnz; i++)
+				addToSum(to, c.urls[i], c.values[i]);
+			sizes[to]++;
+		}
+		c.cluster = to;
+	}
+
+	/// Returns the cluster whose prototype is closest to c and stores the squared distance, in
+	/// stored units, in distance[0]. An empty cluster is seeded with c unless c is alone in its own.
+	private int closest(Client c, double[] distance)
+	{
+		if (c.cluster < 0 || sizes[c.cluster] > 1)
+			for (int cl = 0; cl < k; cl++)
+				if (sizes[cl] == 0) {
+					distance[0] = 0;
+					return cl;
+				}
+
+		int best = -1;
+		double min = Double.MAX_VALUE;
+		for (int cl = 0; cl < k; cl++) {
+			if (sizes[cl] == 0)
+				continue;
+
+			/// ||v - S / n||^2 = ||v||^2 - 2 v.S / n + ||S||^2 / n^2, only over the non-zeros of v
+			double dot = 0;
+			for (int i = 0; i < c.nnz; i++)
+				dot += c.values[i] * sums[cl][c.urls[i]];
+			double d = c.norm - 2 * dot / sizes[cl] + sumNorms[cl] / ((double)sizes[cl] * sizes[cl]);
+			if (d < min) {
+				min = d;
+				best = cl;
+			}
+		}
+		distance[0] = Math.max(0, min);
+		return best;
+	}
+
+	/// Folds the global scale into the stored values once it grows large, so they stay finite.
+	private void rebaseIfNeeded()
+	{
+		if (lambda * (now - origin) <= REBASE)
+			return;
+
+		double f = Math.exp(-lambda * (now - origin));
+		for (Client c : clients.values()) {
+			c.norm = 0;
+			for (int i = 0; i < c.nnz; i++) {
+				c.values[i] *= f;
+				c.norm += (double)c.values[i] * c.values[i];
+			}
+		}
+		for (int cl = 0; cl < k; cl++) {
+			sumNorms[cl] = 0;
+			for (int j = 0; j < dim; j++) {
+				sums[cl][j] *= f;
+				sumNorms[cl] += sums[cl][j] * sums[cl][j];
+			}
+		}
+		origin = now;
+	}
+
+	/******************************* TRAINING METHODS *****************************/
+
+	/// Loads the training rows as a snapshot at the current time, client i being row i, and
+	/// repeats advance() over all clients until no client changes cluster (at most 100 rounds).
+	public boolean train()
+	{
+		float scale = (float)Math.exp(lambda * (now - origin));
+		for (int i = 0; i < trainData.size(); i++) {
+			float[] v = trainData.get(i);
+			// Reinsert at the end, like request(), so the clients stay in order of their last time
+			Client c = clients.remove(i);
+			if (c == null)
+				c = new Client(i);
+			clients.put(i, c);
+			c.lastTime = now;
+			for (int j = 0; j < v.length; j++)
+				if (v[j] != 0)
+					set(c, j, v[j] * scale);
+			markChanged(c);
+		}
+
+		for (int round = 0; round < 100; round++) {
+			if (advance(now) == 0 && round > 0)
+				break;
+			for (Client c : clients.values())
+				markChanged(c);
+		}
+		changed.clear();
+		for (Client c : clients.values())
+			c.dirty = false;
+		return true;
+	}
+
+	/****************************** TESTING METHODS *******************************/
+
+	public boolean test()
+	{
+		// Client i of the test data is the client with id i
+		int[] assigned = new int[testData.size()];
+		Arrays.fill(assigned, -1);
+		for (Client c : clients.values())
+			if (c.id >= 0 && c.id < assigned.length)
+				assigned[c.id] = c.cluster;
+
+		double[] score = score(assigned, testData, prefetchThreshold);
+		hitrate = score[0];
+		accuracy = score[1];
+		if (verbose)
+			showTest();
+		return true;
+	}
+
+	public void showTest()
+	{
+		System.out.println("Half life=" + (Math.log(2) / lambda) + ", window=" + window);
+		System.out.println("Prefetch threshold=" + prefetchThreshold);
+		System.out.println("Hitrate: " + hitrate);
+		System.out.println("Accuracy: " + accuracy);
+		System.out.println("Hitrate+Accuracy=" + (hitrate + accuracy));
+	}
+
+	public void showMembers()
+	{
+		for (int c = 0; c < k; c++)
+			System.out.println("\nMembers cluster[" + c + "] :" + getMembers(c));
+	}
+
+	public void showPrototypes()
+	{
+		for (int c = 0; c < k; c++)
+			System.out.println("\nPrototype cluster[" + c + "] :" + Arrays.toString(getPrototype(c)));
+	}
+
+	public void setPrefetchThreshold(double prefetchThreshold)
+	{
+		this.prefetchThreshold = prefetchThreshold;
+	}
+
+	public int clusterCount()
+	{
+		return k;
+	}
+
+	/// Returns the current prototype of cluster c, built from its sum (O(dim)).
+	public float[] getPrototype(int c)
+	{
+		float[] p = new float[dim];
+		if (sizes[c] > 0) {
+			double f = Math.exp(-lambda * (now - origin)) / sizes[c];
+			for (int j = 0; j < dim; j++)
+				p[j] = (float)(sums[c][j] * f);
+		}
+		return p;
+	}
+
+	public int clusterSize(int c)
+	{
+		return sizes[c];
+	}
+
+	public Set<Integer> getMembers(int c)
+	{
+		Set<Integer> members = new TreeSet<Integer>();
+		for (Client client : clients.values())
+			if (client.cluster == c)
+				members.add(client.id);
+		return members;
+	}
+
+	public int[] assignments()
+	{
+		int points = 0;
+		for (Client client : clients.values())
+			points = Math.max(points, client.id + 1);
+
+		int[] assignments = new int[points];
+		Arrays.fill(assignments, -1);
+		for (Client client : clients.values())
+			assignments[client.id] = client.cluster;
+		return assignments;
+	}
+
+	public int[] clusterSizes()
+	{
+		return sizes.clone();
+	}
+
+	/******************************* REPLAY ****************************************/
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 5) {
+			System.out.println("usage: java DecayedKMeans k halfLife window interval requests.log [threshold]");
+			System.exit(1);
+		}
+
+		int k = Integer.parseInt(args[0]);
+		double halfLife = Double.parseDouble(args[1]), window = Double.parseDouble(args[2]);
+		double interval = Double.parseDouble(args[3]);
+		double threshold = (args.length > 5 ? Double.parseDouble(args[5]) : 0.5);
+
+		/// The dimension is the largest URL index in the log plus one.
+		int dim = 0;
+		try (BufferedReader br = new BufferedReader(new FileReader(args[4]), 1 << 16)) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				StringTokenizer st = new StringTokenizer(line);
+				if (st.countTokens() >= 3) {
+					st.nextToken();
+					st.nextToken();
+					dim = Math.max(dim, Integer.parseInt(st.nextToken()) + 1);
+				}
+			}
+		}
+
+		DecayedKMeans ca = new DecayedKMeans(k, dim, halfLife, window);
+		long requests = 0, hits = 0, windowRequests = 0, windowHits = 0;
+		double nextWindow = Double.NaN;
+		long start = System.nanoTime();
+
+		try (BufferedReader br = new BufferedReader(new FileReader(args[4]), 1 << 16)) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				StringTokenizer st = new StringTokenizer(line);
+				if (st.countTokens() < 3)
+					continue;
+				double time = Double.parseDouble(st.nextToken());
+				int client = Integer.parseInt(st.nextToken()), url = Integer.parseInt(st.nextToken());
+
+				if (Double.isNaN(nextWindow))
+					nextWindow = time + interval;
+				for (; time >= nextWindow; nextWindow += interval) {
+					int reassigned = ca.advance(nextWindow);
+					System.out.format("%12.1f %8d clients %6d reassigned   hitrate %.4f\n", nextWindow, ca.clientCount(),
+						reassigned, (windowRequests == 0 ? 0 : (double)windowHits / windowRequests));
+					windowRequests = windowHits = 0;
+				}
+
+				/// Would the request have been prefetched from the client's current prototype?
+				int cluster = ca.clusterOf(client);
+				boolean hit = (cluster >= 0 && ca.prototypeValue(cluster, url) > threshold);
+				requests++;
+				windowRequests++;
+				hits += (hit ? 1 : 0);
+				windowHits += (hit ? 1 : 0);
+
+				ca.request(client, url, time);
+			}
+		}
+
+		System.out.format("%d requests in %.1f s, hitrate %.4f\n", requests, (System.nanoTime() - start) / 1e9,
+			(requests == 0 ? 0 : (double)hits / requests));
+	}
+}
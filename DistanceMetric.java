@@ -0,0 +1,34 @@
+public interface DistanceMetric
+{
+	// A distance between feature vectors, where a smaller value means closer. Every metric offers
+	// kernels for two encodings of the first vector:
+	//   dense       float[] with one value per URL
+	//   sparse      the indices and values of the non-zero elements of a dense vector
+	// The sparse kernels compare against a dense prototype and need the norms returned by norm(),
+	// which callers compute once per vector and cache.
+
+	/// Distance between dense vectors a and b.
+	double distance(float[] a, float[] b);
+
+	/// Distance between dense vectors a and b, given their norms as returned by norm().
+	default double distance(float[] a, double aNorm, float[] b, double bNorm)
+	{
+		return distance(a, b);
+	}
+
+	/// True if the dense distance above uses the norms. If not, a caller that changes a vector often
+	/// (a Kohonen prototype) does not have to keep its norm up to date for dense distances.
+	default boolean denseUsesNorms()
+	{
+		return false;
+	}
+
+	/// Distance between the sparse vector (idx, val) and the dense vector b, given their norms.
+	double distance(int[] idx, float[] val, double aNorm, float[] b, double bNorm);
+
+	/// The norm of a dense vector that this metric's kernels take as aNorm and bNorm.
+	double norm(float[] a);
+
+	/// The norm of a sparse vector, equal to norm() of the corresponding dense vector.
+	double norm(float[] val, int nnz);
+}
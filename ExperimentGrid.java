@@ -0,0 +1,418 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ExperimentGrid
+{
+	// This class runs a grid of clustering configurations without user interaction.
+	//
+	// Usage: java ExperimentGrid grid.txt results.(csv|json) [threads] [traindata testdata]
+	//
+	// Every non-empty line of the grid file that does not start with '#' names an algorithm
+	// followed by key=value parameters. A value may be a comma separated list, the line is then
+	// expanded into all combinations. For example:
+	//
+	//   kmeans    k=4,8,16 seed=1,2,3 threshold=0.3,0.5,0.7 metric=sqeuclidean,cosine
+	//   kohonen   n=4,8 epochs=20 seed=1 threshold=0.5
+	//   leader    maxDis=2.5,3.0 threshold=0.5 collapse=0,1
+	//   kmeans    k=8 coreset=0,1000,5000 seed=1
+	//   kmeans    k=8 reduce=0,256,1024 hashes=1,4
+	//
+	// The metric names are those of Metrics.forName(); by default every algorithm keeps its own.
+	// collapse=1 trains on the distinct training rows as weighted points, see WeightedRows.
+	// coreset=m trains on a coreset of about m rows drawn with the seed of the run, see Coreset;
+	// coreset=0 (the default) trains on all rows.
+	// reduce=w clusters the rows after a random projection to w dimensions with 'hashes' non-zeros
+	// per URL, see ReducedClustering; reduce=0 (the default) clusters the original rows.
+	// Thresholds only affect scoring, so every trained model is scored for all thresholds on its line.
+	//
+	// Parameters an algorithm does not use (n for kmeans, k for kohonen, hashes without reduce, ...)
+	// do not multiply its configurations: combinations that train the same model run once, scored
+	// at the thresholds of all of them, and the unused parameters are left empty in the results.
+	// A configuration that fails, even with an Error like OutOfMemoryError, reports it in the error
+	// column and the rest of the grid still runs.
+
+	// One trainable configuration, with the thresholds it is scored at
+	static class Config
+	{
+		String algorithm;
+		int k, n, epochs;
+		double maxDis;
+		long seed;
+		String metric;
+		boolean collapse;
+		int coreset, reduce, hashes;
+		double[] thresholds;
+
+		/// True if the parameter affects the trained model of this configuration.
+		boolean uses(String parameter)
+		{
+			switch (parameter) {
+				case "k":
+					return algorithm.equals("kmeans");
+				case "n":
+				case "epochs":
+					return algorithm.equals("kohonen");
+				case "maxDis":
+					return algorithm.equals("leader");
+				case "seed":
+					// Leader-Follower only draws random numbers for a coreset or a projection
+					return !algorithm.equals("leader") || coreset > 0 || reduce > 0;
+				case "collapse":
+					return coreset == 0;
+				case "hashes":
+					return reduce > 0;
+			}
+			return true;
+		}
+
+		/// The used parameters; configurations with the same key train the same model.
+		String key()
+		{
+			return algorithm + (uses("k") ? " k=" + k : "") + (uses("n") ? " n=" + n + " epochs=" + epochs : "")
+				+ (uses("maxDis") ? " maxDis=" + maxDis : "") + (uses("seed") ? " seed=" + seed : "") + " metric=" + metric
+				+ (uses("collapse") ? " collapse=" + collapse : "") + " coreset=" + coreset + " reduce=" + reduce
+				+ (uses("hashes") ? " hashes=" + hashes : "");
+		}
+
+		public ClusteringAlgorithm create(Vector<float[]> trainData, Vector<float[]> testData, int dim)
+		{
+			// Every run gets its own copy of the vectors (the rows are shared), so runs do not contend
+			// on the synchronized Vector methods.
+			if (algorithm.equals("kmeans"))
+				return new KMeans(k, new Vector<float[]>(trainData), new Vector<float[]>(testData), dim, seed);
+			if (algorithm.equals("kohonen"))
+				return new Kohonen(n, epochs, new Vector<float[]>(trainData), new Vector<float[]>(testData), dim, seed);
+			return new LeaderFollower(maxDis, new Vector<float[]>(trainData), new Vector<float[]>(testData), dim);
+		}
+	}
+
+	// Result of scoring one configuration at one threshold
+	static class Result
+	{
+		Config config;
+		double threshold, hitrate, accuracy;
+		int clusters;
+		long trainMillis, testMillis;
+		String error;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length != 2 && args.length != 3 && args.length != 5) {
+			System.out.println("usage: java ExperimentGrid grid results.(csv|json) [threads] [traindata testdata]");
+			System.exit(1);
+		}
+
+		int threads = (args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+		Vector<float[]> trainData = RunClustering.readMatrix(args.length == 5 ? args[3] : "train.dat");
+		Vector<float[]> testData = RunClustering.readMatrix(args.length == 5 ? args[4] : "test.dat");
+		int dim = trainData.get(0).length;
+
+		List<Config> configs = readGrid(args[0]);
+		System.out.println("Running " + configs.size() + " configurations on " + threads + " threads");
+
+		List<Result> results = run(configs, trainData, testData, dim, threads);
+		if (args[1].endsWith(".json"))
+			writeJson(results, args[1]);
+		else
+			writeCsv(results, args[1]);
+
+		System.out.println("Results written to " + args[1]);
+	}
+
+	/// Trains and scores all configurations on a pool of 'threads' threads. Results keep the grid order.
+	public static List<Result> run(List<Config> configs, Vector<float[]> trainData, Vector<float[]> testData, int dim, int threads)
+		throws InterruptedException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<List<Result>>> futures = new ArrayList<Future<List<Result>>>();
+
+		for (Config config : configs)
+			futures.add(executor.submit(() -> runOne(config, trainData, testData, dim)));
+		executor.shutdown();
+
+		List<Result> results = new ArrayList<Result>();
+		int done = 0;
+		for (Future<List<Result>> future : futures) {
+			try {
+				results.addAll(future.get());
+			}
+			catch (ExecutionException e) {
+				// runOne() catches everything itself; should anything escape, it fails only this configuration
+				results.addAll(failed(configs.get(done), e.getCause()));
+			}
+			System.out.print("\r[" + (++done) + "/" + configs.size() + "]");
+		}
+		System.out.println();
+
+		return results;
+	}
+
+	/// Trains and scores one configuration. Anything thrown, including an Error, becomes the error
+	/// of its results.
+	private static List<Result> runOne(Config config, Vector<float[]> trainData, Vector<float[]> testData, int dim)
+	{
+		List<Result> results = new ArrayList<Result>();
+		long trainMillis = 0;
+		String error = null;
+		ClusteringAlgorithm ca = null;
+
+		try {
+			if (config.reduce > 0)
+				ca = new ReducedClustering(new RandomProjection(dim, config.reduce, config.hashes, config.seed), config::create, trainData, testData);
+			else
+				ca = config.create(trainData, testData, dim);
+			ca.setVerbose(false);
+			if (config.metric != null)
+				ca.setMetric(Metrics.forName(config.metric));
+			ca.setCollapseDuplicates(config.collapse);
+			ca.setCoreset(config.coreset, config.seed);
+
+			long start = System.nanoTime();
+			ca.train();
+			trainMillis = (System.nanoTime() - start) / 1000000;
+		}
+		catch (Throwable e) {
+			// Release the model first, after an OutOfMemoryError the error string needs memory too
+			ca = null;
+			error = e.toString();
+		}
+
+		for (double threshold : config.thresholds) {
+			Result r = new Result();
+			r.config = config;
+			r.threshold = threshold;
+			r.trainMillis = trainMillis;
+			r.error = error;
+
+			if (error == null) {
+				try {
+					long start = System.nanoTime();
+					double[] score = ca.score(trainData, testData, threshold);
+					r.testMillis = (System.nanoTime() - start) / 1000000;
+					r.hitrate = score[0];
+					r.accuracy = score[1];
+					r.clusters = ca.clusterCount();
+				}
+				catch (Throwable e) {
+					r.error = e.toString();
+				}
+			}
+			results.add(r);
+		}
+
+		return results;
+	}
+
+	/// Results of a configuration that failed with 'cause', one per threshold.
+	private static List<Result> failed(Config config, Throwable cause)
+	{
+		List<Result> results = new ArrayList<Result>();
+		for (double threshold : config.thresholds) {
+			Result r = new Result();
+			r.config = config;
+			r.threshold = threshold;
+			r.error = String.valueOf(cause);
+			results.add(r);
+		}
+		return results;
+	}
+
+	/******************************* GRID PARSING **********************************/
+
+	/// Reads the configurations of a grid file, in order of their first appearance and without
+	/// duplicates (see Config.key()).
+	public static List<Config> readGrid(String fileName) throws IOException
+	{
+		Map<String, Config> configs = new LinkedHashMap<String, Config>();
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = br.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+
+				try {
+					expand(line, configs);
+				}
+				catch (IllegalArgumentException e) {
+					throw new IOException(fileName + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		}
+		finally {
+			br.close();
+		}
+		return new ArrayList<Config>(configs.values());
+	}
+
+	/// Adds every combination of parameter values on one grid line to configs. A combination that
+	/// is already there only adds its thresholds.
+	private static void expand(String line, Map<String, Config> configs)
+	{
+		StringTokenizer st = new StringTokenizer(line);
+		String algorithm = st.nextToken().toLowerCase();
+		if (!algorithm.equals("kmeans") && !algorithm.equals("kohonen") && !algorithm.equals("leader"))
+			throw new IllegalArgumentException("unknown algorithm '" + algorithm + "'");
+
+		// Defaults, overridden by the parameters on the line
+		Map<String, double[]> values = new LinkedHashMap<String, double[]>();
+		values.put("k", new double[] { 4 });
+		values.put("n", new double[] { 4 });
+		values.put("epochs", new double[] { 10 });
+		values.put("maxDis", new double[] { 1 });
+		values.put("seed", new double[] { 0 });
+		values.put("collapse", new double[] { 0 });
+		values.put("coreset", new double[] { 0 });
+		values.put("reduce", new double[] { 0 });
+		values.put("hashes", new double[] { 1 });
+		double[] thresholds = { 0.5 };
+		String[] metrics = { null };
+
+		while (st.hasMoreTokens()) {
+			String token = st.nextToken();
+			int eq = token.indexOf('=');
+			String key = (eq < 0 ? token : token.substring(0, eq));
+			if (eq < 0 || (!values.containsKey(key) && !key.equals("threshold") && !key.equals("metric")))
+				throw new IllegalArgumentException("bad parameter '" + token + "'");
+
+			String[] parts = token.substring(eq + 1).split(",");
+			if (key.equals("metric")) {
+				for (String part : parts)
+					Metrics.forName(part);
+				metrics = parts;
+				continue;
+			}
+
+			double[] list = new double[parts.length];
+			for (int i = 0; i < parts.length; i++)
+				list[i] = Double.parseDouble(parts[i]);
+
+			if (key.equals("threshold"))
+				thresholds = list;
+			else
+				values.put(key, list);
+		}
+
+		for (double k : values.get("k"))
+			for (double n : values.get("n"))
+				for (double epochs : values.get("epochs"))
+					for (double maxDis : values.get("maxDis"))
+						for (double seed : values.get("seed"))
+							for (double collapse : values.get("collapse"))
+								for (double coreset : values.get("coreset"))
+									for (double reduce : values.get("reduce"))
+										for (double hashes : values.get("hashes"))
+											for (String metric : metrics) {
+												Config c = new Config();
+												c.algorithm = algorithm;
+												c.k = (int)k;
+												c.n = (int)n;
+												c.epochs = (int)epochs;
+												c.maxDis = maxDis;
+												c.seed = (long)seed;
+												c.metric = metric;
+												c.collapse = (collapse != 0);
+												c.coreset = (int)coreset;
+												c.reduce = (int)reduce;
+												c.hashes = (int)hashes;
+												c.thresholds = thresholds;
+
+												Config same = configs.putIfAbsent(c.key(), c);
+												if (same != null && same != c)
+													same.thresholds = union(same.thresholds, thresholds);
+											}
+	}
+
+	/// Returns the values of a followed by those of b that are not in a.
+	private static double[] union(double[] a, double[] b)
+	{
+		double[] all = Arrays.copyOf(a, a.length + b.length);
+		int size = a.length;
+		for (double t : b) {
+			boolean found = false;
+			for (int i = 0; i < size; i++)
+				found |= (all[i] == t);
+			if (!found)
+				all[size++] = t;
+		}
+		return Arrays.copyOf(all, size);
+	}
+
+	/******************************* RESULT OUTPUT *********************************/
+
+	private static final String[] COLUMNS = {
+		"algorithm", "k", "n", "epochs", "maxDis", "seed", "metric", "collapse", "coreset", "reduce", "hashes", "threshold", "clusters",
+		"trainMillis", "testMillis", "hitrate", "accuracy", "hitratePlusAccuracy", "error"
+	};
+
+	private static Object[] row(Result r)
+	{
+		Config c = r.config;
+		return new Object[] {
+			c.algorithm, used(c, "k", c.k), used(c, "n", c.n), used(c, "epochs", c.epochs), used(c, "maxDis", c.maxDis),
+			used(c, "seed", c.seed), c.metric, used(c, "collapse", c.collapse), c.coreset, c.reduce, used(c, "hashes", c.hashes),
+			r.threshold, r.clusters,
+			r.trainMillis, r.testMillis, r.hitrate, r.accuracy, r.hitrate + r.accuracy, r.error
+		};
+	}
+
+	/// The value of a parameter, or null (empty) if the configuration does not use it.
+	private static Object used(Config c, String parameter, Object value)
+	{
+		return (c.uses(parameter) ? value : null);
+	}
+
+	public static void writeCsv(List<Result> results, String fileName) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+		try {
+			out.println(String.join(",", COLUMNS));
+			for (Result r : results) {
+				Object[] row = row(r);
+				for (int i = 0; i < row.length; i++) {
+					if (i > 0)
+						out.print(',');
+					if (row[i] != null)
+						out.print(row[i] instanceof String ? "\"" + ((String)row[i]).replace("\"", "\"\"") + "\"" : row[i]);
+				}
+				out.println();
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	public static void writeJson(List<Result> results, String fileName) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+		try {
+			out.println("[");
+			for (int r = 0; r < results.size(); r++) {
+				Object[] row = row(results.get(r));
+				out.print("  {");
+				for (int i = 0; i < row.length; i++) {
+					out.print((i > 0 ? ", " : "") + "\"" + COLUMNS[i] + "\": ");
+					if (row[i] == null)
+						out.print("null");
+					else if (row[i] instanceof String)
+						out.print("\"" + ((String)row[i]).replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+					else if (row[i] instanceof Double && (((Double)row[i]).isNaN() || ((Double)row[i]).isInfinite()))
+						out.print("null");
+					else
+						out.print(row[i]);
+				}
+				out.println(r < results.size() - 1 ? "}," : "}");
+			}
+			out.println("]");
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+import java.io.*;
+import java.util.*;
+
+public class GenerateData
+{
+	// Generates synthetic client x URL datasets in the format read by RunClustering.
+	//
+	// Usage: java GenerateData [dir=.] [clients=1000] [urls=200] [clusters=8] [requests=20]
+	//                          [zipf=1.0] [affinity=0.8] [train=0.5] [seed=1] [format=dat|bin]
+	//
+	// Writes train.dat, test.dat, requests.dat and clients.dat to dir, plus truth.dat with the
+	// planted cluster of every client. URL popularity follows a Zipf distribution with exponent
+	// 'zipf'. Every planted cluster ranks the URLs in its own order; a request of a client is
+	// drawn from the ranking of its cluster with probability 'affinity' and from the global
+	// ranking otherwise. Every request lands in train.dat with probability 'train' and in
+	// test.dat otherwise. Rows are generated and written one client at a time, so memory use
+	// depends on the number of URLs only. With format=bin the matrices are written as MatrixFiles
+	// train.bin and test.bin instead, for the out-of-core algorithms.
+
+	private int clients, urls, clusters, requests;
+	private double zipf, affinity, train;
+	private Random random;
+
+	// Cumulative Zipf probabilities of the URL ranks
+	private double[] cdf;
+
+	// Every cluster maps rank r to URL (multiplier[c] * r + offset[c]) mod urls, a permutation
+	// that does not need to be stored.
+	private long[] multiplier, offset;
+
+	public GenerateData(int clients, int urls, int clusters, int requests, double zipf, double affinity, double train, long seed)
+	{
+		this.clients = clients;
+		this.urls = urls;
+		this.clusters = clusters;
+		this.requests = requests;
+		this.zipf = zipf;
+		this.affinity = affinity;
+		this.train = train;
+		this.random = new Random(seed);
+
+		cdf = new double[urls];
+		double sum = 0;
+		for (int r = 0; r < urls; r++)
+			cdf[r] = (sum += 1 / Math.pow(r + 1, zipf));
+		for (int r = 0; r < urls; r++)
+			cdf[r] /= sum;
+
+		multiplier = new long[clusters];
+		offset = new long[clusters];
+		for (int c = 0; c < clusters; c++) {
+			do {
+				multiplier[c] = 1 + random.nextInt(Math.max(1, urls - 1));
+			} while (gcd(multiplier[c], urls) != 1);
+			offset[c] = random.nextInt(urls);
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				System.out.println("bad argument '" + arg + "', expected key=value");
+				System.exit(1);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+
+		GenerateData generator = new GenerateData(
+			Integer.parseInt(options.getOrDefault("clients", "1000")),
+			Integer.parseInt(options.getOrDefault("urls", "200")),
+			Integer.parseInt(options.getOrDefault("clusters", "8")),
+			Integer.parseInt(options.getOrDefault("requests", "20")),
+			Double.parseDouble(options.getOrDefault("zipf", "1.0")),
+			Double.parseDouble(options.getOrDefault("affinity", "0.8")),
+			Double.parseDouble(options.getOrDefault("train", "0.5")),
+			Long.parseLong(options.getOrDefault("seed", "1")));
+
+		long start = System.nanoTime();
+		generator.write(new File(options.getOrDefault("dir", ".")), options.getOrDefault("format", "dat").equals("bin"));
+		System.out.format("Generated %s clients x %s URLs in %.1f s\n", generator.clients, generator.urls, (System.nanoTime() - start) / 1e9);
+	}
+
+	/// Writes the dataset files to dir, the matrices as MatrixFiles if binary is set.
+	public void write(File dir, boolean binary) throws IOException
+	{
+		dir.mkdirs();
+		writeNames(new File(dir, "requests.dat"), "/url/", urls, ".html");
+		writeNames(new File(dir, "clients.dat"), "client", clients, ".example.com");
+
+		PrintWriter truthOut = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, "truth.dat"))));
+		if (binary) {
+			try (MatrixFile.Writer trainOut = new MatrixFile.Writer(new File(dir, "train.bin").getPath(), clients, urls);
+			     MatrixFile.Writer testOut = new MatrixFile.Writer(new File(dir, "test.bin").getPath(), clients, urls)) {
+				boolean[] trainRow = new boolean[urls], testRow = new boolean[urls];
+
+				for (int i = 0; i < clients; i++) {
+					int cluster = random.nextInt(clusters);
+					nextClient(cluster, trainRow, testRow);
+
+					trainOut.write(trainRow);
+					testOut.write(testRow);
+					truthOut.println(cluster);
+				}
+			}
+			finally {
+				truthOut.close();
+			}
+			return;
+		}
+
+		OutputStream trainOut = new BufferedOutputStream(new FileOutputStream(new File(dir, "train.dat")), 1 << 20);
+		OutputStream testOut = new BufferedOutputStream(new FileOutputStream(new File(dir, "test.dat")), 1 << 20);
+		try {
+			boolean[] trainRow = new boolean[urls], testRow = new boolean[urls];
+			byte[] line = new byte[4 * urls];
+
+			for (int i = 0; i < clients; i++) {
+				int cluster = random.nextInt(clusters);
+				nextClient(cluster, trainRow, testRow);
+
+				trainOut.write(line, 0, format(trainRow, line));
+				testOut.write(line, 0, format(testRow, line));
+				truthOut.println(cluster);
+			}
+		}
+		finally {
+			trainOut.close();
+			testOut.close();
+			truthOut.close();
+		}
+	}
+
+	/// Fills the train and test rows of one client of the given cluster.
+	public void nextClient(int cluster, boolean[] trainRow, boolean[] testRow)
+	{
+		Arrays.fill(trainRow, false);
+		Arrays.fill(testRow, false);
+
+		// Number of requests is geometric with mean 'requests', at least one
+		int count = 1 + (int)(Math.log(1 - random.nextDouble()) / Math.log(1 - 1.0 / Math.max(1, requests)));
+		if (requests <= 1)
+			count = 1;
+
+		for (int q = 0; q < count; q++) {
+			int rank = sampleRank();
+			int url = (random.nextDouble() < affinity ? (int)((multiplier[cluster] * rank + offset[cluster]) % urls) : rank);
+
+			if (random.nextDouble() < train)
+				trainRow[url] = true;
+			else
+				testRow[url] = true;
+		}
+	}
+
+	/// Returns a URL rank drawn from the Zipf distribution.
+	private int sampleRank()
+	{
+		int r = Arrays.binarySearch(cdf, random.nextDouble());
+		return Math.min(urls - 1, (r < 0 ? -r - 1 : r));
+	}
+
+	/// Formats a row as "1.0 0.0 ... 0.0\n" into line and returns the number of bytes used.
+	static int format(boolean[] row, byte[] line)
+	{
+		int p = 0;
+		for (int j = 0; j < row.length; j++) {
+			line[p++] = (byte)(row[j] ? '1' : '0');
+			line[p++] = '.';
+			line[p++] = '0';
+			line[p++] = (byte)(j < row.length - 1 ? ' ' : '\n');
+		}
+		return p;
+	}
+
+	/// Returns n random binary vectors of length dim, with about density * dim ones each and no
+	/// cluster structure; for benchmarks and self-checks.
+	public static Vector<float[]> uniform(int n, int dim, double density, long seed)
+	{
+		Random random = new Random(seed);
+		Vector<float[]> data = new Vector<float[]>();
+
+		for (int i = 0; i < n; i++) {
+			float[] v = new float[dim];
+			for (int j = 0; j < dim; j++)
+				v[j] = (random.nextDouble() < density ? 1 : 0);
+			data.add(v);
+		}
+		return data;
+	}
+
+	private static void writeNames(File file, String prefix, int count, String suffix) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16));
+		try {
+			for (int i = 0; i < count; i++)
+				out.println(prefix + i + suffix);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static long gcd(long a, long b)
+	{
+		return (b == 0 ? a : gcd(b, a % b));
+	}
+}
@@ -1,3 +1,4 @@
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -17,6 +18,17 @@ public class KMeans extends ClusteringAlgorithm
 
 	/// Random number generator.
 	private Random random;
+
+	/// Distance found by the last call of closestPrototype(), and the inertia (sum of those distances)
+	/// of the last performClustering().
+	private double lastDistance, inertia;
+
+	/// Model the centroids were initialized from by warmStart(), null for a cold start. Its sizes
+	/// are the weight of the old centroids, which clusterSize() adds to the delta members.
+	private Model warmModel;
+
+	/// Weight of every training point while train() runs on collapsed rows, null otherwise.
+	private int[] weights;
 	
 	// This class represents the clusters, it contains the prototype (the mean of all it's members)
 	// and memberlists with the ID's (which are Integer objects) of the datapoints that are member of that cluster.
@@ -25,6 +37,9 @@ public class KMeans extends ClusteringAlgorithm
 	{
 		float[] prototype;
 
+		/// Norm of the prototype under the metric in use, see refreshNorm().
+		double norm;
+
 		Set<Integer> currentMembers;
 		Set<Integer> previousMembers;
 		  
@@ -51,25 +66,79 @@ public class KMeans extends ClusteringAlgorithm
 			prototype = new float[n];
 
 			/// Iterate across all member vectors, add up values.
+			for (Integer i : currentMembers) {
+				Kernels.INSTANCE.accumulate(prototype, data.elementAt(i.intValue()));
+			}
+
+			/// Divide out by total members size to get mean.
+			Kernels.INSTANCE.divide(prototype, d);
+		}
+
+		/// Computes the weighted mean feature vector, where member i counts weights[i] times.
+		/// Without weights this is updatePrototype(data).
+		public void updatePrototype (Vector<float[]> data, int[] weights) {
+			if (weights == null) {
+				updatePrototype(data);
+				return;
+			}
+			int n = prototype.length;
+			long d = 0;
+			prototype = new float[n];
+
 			for (Integer i : currentMembers) {
 				float[] v = data.elementAt(i.intValue());
+				float w = weights[i.intValue()];
 				for (int j = 0; j < n; j++) {
-					prototype[j] += v[j];
+					prototype[j] += w * v[j];
 				}
+				d += weights[i.intValue()];
 			}
 
-			/// Divide out by total members size to get mean.
-			for (int i = 0; i < n; i++) {
-				prototype[i] /= d;
+			Kernels.INSTANCE.divide(prototype, d);
+		}
+
+		/// Computes the mean of the members together with a prior centroid weighted by priorSize.
+		public void updatePrototype (Vector<float[]> data, float[] prior, int priorSize) {
+			int n = prototype.length;
+			double d = currentMembers.size() + priorSize;
+			double[] sum = new double[n];
+
+			for (int j = 0; j < n; j++) {
+				sum[j] = (double)prior[j] * priorSize;
 			}
+			for (Integer i : currentMembers) {
+				float[] v = data.elementAt(i.intValue());
+				for (int j = 0; j < n; j++) {
+					sum[j] += v[j];
+				}
+			}
+
+			/// An empty cluster without prior weight keeps its old position.
+			if (d == 0) {
+				return;
+			}
+			prototype = new float[n];
+			for (int j = 0; j < n; j++) {
+				prototype[j] = (float)(sum[j] / d);
+			}
+		}
+
+		/// Caches the norm of the prototype, which some metrics need for every distance.
+		public void refreshNorm (DistanceMetric metric) {
+			norm = metric.norm(prototype);
 		}
 
 		/// Computes the number of differences betweeen the previous and current members.
 		public int membershipChanges() {
+			return membershipChanges(null);
+		}
+
+		/// As membershipChanges(), where member i counts weights[i] times if weights is not null.
+		public int membershipChanges(int[] weights) {
 			int changed = 0;
 
 			for (Integer i : currentMembers) {
-				changed += (previousMembers.contains(i) == true) ? 0 : 1;
+				changed += (previousMembers.contains(i) == true) ? 0 : (weights == null ? 1 : weights[i.intValue()]);
 			}
 
 			return changed;
@@ -95,12 +164,23 @@ public class KMeans extends ClusteringAlgorithm
 
 	
 	public KMeans(int k, Vector<float[]> trainData, Vector<float[]> testData, int dim)
+	{
+		this(k, trainData, testData, dim, new Random());
+	}
+
+	/// Seeded variant, so that runs can be repeated.
+	public KMeans(int k, Vector<float[]> trainData, Vector<float[]> testData, int dim, long seed)
+	{
+		this(k, trainData, testData, dim, new Random(seed));
+	}
+
+	private KMeans(int k, Vector<float[]> trainData, Vector<float[]> testData, int dim, Random random)
 	{
 		this.k = k;
 		this.trainData = trainData;
 		this.testData = testData; 
 		this.dim = dim;
-		this.random = new Random();
+		this.random = random;
 		prefetchThreshold = 0.5;
 		
 		// Here k new cluster are initialized
@@ -141,7 +221,7 @@ public class KMeans extends ClusteringAlgorithm
 		int changes = 0;
 
 		for (Cluster c : clusters) {
-			changes += c.membershipChanges();
+			changes += c.membershipChanges(weights);
 		}
 
 		return changes;
@@ -159,18 +239,20 @@ public class KMeans extends ClusteringAlgorithm
 		return Math.sqrt(d);
 	}
 
-	/// Returns the closest prototype to the given feature vector.
+	/// Returns the closest prototype to the given feature vector, using the selected metric.
 	public Cluster closestPrototype(float[] v, Cluster[] clusters) {
-		double d, min = 10E10;
+		double d, min = Double.MAX_VALUE;
+		double norm = metric.norm(v);
 		Cluster p = null;
 
 		for (Cluster c : clusters) {
-			if ((d = euclideanDistance(v, c.prototype)) < min) {
+			if ((d = metric.distance(v, norm, c.prototype, c.norm)) < min) {
 				min = d;
 				p = c;
 			}
 		}
 
+		lastDistance = min;
 		return p;
 	}
 
@@ -186,17 +268,20 @@ public class KMeans extends ClusteringAlgorithm
 		}
 
 		/// Assign datapoints to clusters.
+		inertia = 0;
 		for (i = 0; i < n; i++) {
 			v = data.elementAt(permutation[i]);
 			Cluster c = closestPrototype(v, clusters);
 			c.currentMembers.add(permutation[i]);
+			inertia += (weights == null ? lastDistance : weights[permutation[i]] * lastDistance);
 		}
 	}
 
 	/// Recomputes the prototypes for all clusters.
 	public void recomputeMeanPositions(Vector<float[]> data, Cluster[] clusters) {
 		for (Cluster c : clusters) {
-			c.updatePrototype(data);
+			c.updatePrototype(data, weights);
+			c.refreshNorm(metric);
 		}
 	}
 
@@ -208,41 +293,209 @@ public class KMeans extends ClusteringAlgorithm
 		// Step 3: recalculate cluster centers
 		// Step 4: repeat until clustermembership stabilizes
 
-		/// Step 1: Partition training data to random clusters.
-		randomPartition(this.trainData, this.clusters);
-		recomputeMeanPositions(this.trainData, this.clusters);
+		/// A full training run does not build on a warm-started model.
+		warmModel = null;
+
+		/// Optionally train on weighted points (collapsed rows or a coreset) instead of the rows.
+		Vector<float[]> data = this.trainData;
+		WeightedRows weighted = weightedRows(this.trainData);
+		if (weighted != null) {
+			data = weighted.points;
+			weights = weighted.weights;
+		}
 
-		/* DEBUG */
-		System.out.println("****************************** Step 1: Partitions ******************************");
-		printClusters(this.clusters);
-		System.out.println("***************************** Step (2,3): Training *****************************");
 		int delta = 0;
 		int round = 0;
 
-		do {
-			/* DEBUG */
-			System.out.format("\n\nRound %d, Changed (previous cycle) = %d\n\n", round, delta);
-			round++;
+		if (resumeFile != null) {
+			/// Continue from a checkpoint instead of a new random partition.
+			int[] state = restore(resumeFile, data.size());
+			round = state[0];
+			delta = state[1];
+			if (verbose)
+				System.out.format("Resumed from %s at round %d\n", resumeFile, round);
+		}
+		else {
+			/// Step 1: Partition training data to random clusters.
+			randomPartition(data, this.clusters);
+			recomputeMeanPositions(data, this.clusters);
+		}
 
-			/// Step 2: Obtain random permutation, reassign datapoints to clusters.
-			int[] indexPermutation = randomPermutation(this.trainData.size());
-			performClustering(indexPermutation, this.trainData, this.clusters);
+		/* DEBUG */
+		if (verbose) {
+			System.out.println("****************************** Step 1: Partitions ******************************");
+			printClusters(this.clusters);
+			System.out.println("***************************** Step (2,3): Training *****************************");
+		}
 
-			/// Step 3: Recompute mean positions of prototypes.
-			recomputeMeanPositions(this.trainData, this.clusters);
+		try (Checkpointer checkpoints = checkpointer()) {
+			do {
+				/* DEBUG */
+				if (verbose)
+					System.out.format("\n\nRound %d, Changed (previous cycle) = %d\n\n", round, delta);
+				beginIteration();
 
-			/* DEBUG */
-			printClusters(this.clusters);
+				/// Step 2: Obtain random permutation, reassign datapoints to clusters.
+				int[] indexPermutation = randomPermutation(data.size());
+				performClustering(indexPermutation, data, this.clusters);
+
+				/// Step 3: Recompute mean positions of prototypes.
+				recomputeMeanPositions(data, this.clusters);
+
+				/* DEBUG */
+				if (verbose)
+					printClusters(this.clusters);
+
+				delta = totalMembershipChanges(this.clusters);
+				endIteration(round, (long)data.size() * k, delta, inertia);
+				round++;
+
+				if (checkpoints != null && delta > 0 && checkpoints.due(round))
+					checkpoints.save(checkpointState(round, delta, data.size()));
+
+			} while (delta > 0);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 
-		} while ((delta = totalMembershipChanges(this.clusters)) > 0);
+		/// Map the members back from points to the original clients, or assign all clients if the
+		/// points were only a sample.
+		if (weighted != null) {
+			weights = null;
+			if (weighted.isComplete()) {
+				for (Cluster c : this.clusters) {
+					c.currentMembers = weighted.expand(c.currentMembers);
+					c.previousMembers = weighted.expand(c.previousMembers);
+				}
+			}
+			else {
+				int[] identity = new int[this.trainData.size()];
+				for (int i = 0; i < identity.length; i++)
+					identity[i] = i;
+				performClustering(identity, this.trainData, this.clusters);
+			}
+		}
 
 		/* DEBUG */
-		System.out.format("\n\nStopped on round %d, Changed (previous cycle) = %d\n\n", round, delta);
+		if (verbose)
+			System.out.format("\n\nStopped on round %d, Changed (previous cycle) = %d\n\n", round, delta);
 
 		return false;
 	}
 
 
+	/****************************** CHECKPOINT METHODS ****************************/
+
+	/// Copies the state after 'round' rounds: the delta of the last round, the state of the random
+	/// generator, the cluster of every training point and the prototypes.
+	private Checkpointer.State checkpointState(int round, int delta, int points) {
+		int[] assignment = new int[points];
+		float[][] prototypes = new float[k][];
+		for (int ic = 0; ic < k; ic++) {
+			for (Integer i : clusters[ic].currentMembers) {
+				assignment[i.intValue()] = ic;
+			}
+			prototypes[ic] = clusters[ic].prototype.clone();
+		}
+		byte[] randomState = Checkpointer.serialize(random);
+
+		return out -> {
+			out.writeInt(k);
+			out.writeInt(dim);
+			out.writeInt(points);
+			out.writeInt(round);
+			out.writeInt(delta);
+			Checkpointer.writeBytes(out, randomState);
+			for (int a : assignment) {
+				out.writeInt(a);
+			}
+			for (float[] p : prototypes) {
+				for (float x : p) {
+					out.writeFloat(x);
+				}
+			}
+		};
+	}
+
+	/// Restores the state written by checkpointState() and returns {round, delta}.
+	private int[] restore(String fileName, int points) {
+		try (DataInputStream in = Checkpointer.open(fileName, getClass().getSimpleName())) {
+			if (in.readInt() != k || in.readInt() != dim || in.readInt() != points) {
+				throw new IOException(fileName + " is a checkpoint of a different k, dimension or number of points");
+			}
+			int round = in.readInt(), delta = in.readInt();
+			random = (Random)Checkpointer.readObject(in);
+
+			for (Cluster c : clusters) {
+				c.currentMembers = new HashSet<Integer>();
+				c.previousMembers = new HashSet<Integer>();
+			}
+			for (int i = 0; i < points; i++) {
+				clusters[in.readInt()].currentMembers.add(i);
+			}
+			for (Cluster c : clusters) {
+				for (int j = 0; j < dim; j++) {
+					c.prototype[j] = in.readFloat();
+				}
+				c.refreshNorm(metric);
+			}
+			return new int[] { round, delta };
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/****************************** WARM-START METHODS ****************************/
+
+	/// Initializes the centroids from a previously trained model instead of a random partition.
+	/// The sizes of the old clusters are kept as the weight of the old centroids in retrain(), and
+	/// clusterSize() includes them, so a model saved after retrain() carries the whole history.
+	public void warmStart(Model model)
+	{
+		checkModel(model, k, dim);
+		warmModel = model;
+
+		for (int ic = 0; ic < k; ic++) {
+			clusters[ic].prototype = model.prototypes[ic].clone();
+			clusters[ic].refreshNorm(metric);
+			clusters[ic].currentMembers = new HashSet<Integer>();
+			clusters[ic].previousMembers = new HashSet<Integer>();
+		}
+	}
+
+	/// Retrains a warm-started model on new or changed rows only. Every pass is a Lloyd iteration
+	/// over the delta rows, where each old centroid takes part as a single point weighted by the
+	/// size of its old cluster. Stops after 'passes' passes or when the delta memberships are stable.
+	/// Afterwards the members of the clusters are indices into delta. Returns the drift {mean, max}.
+	public double[] retrain(Vector<float[]> delta, int passes)
+	{
+		if (warmModel == null)
+			throw new IllegalStateException("retrain() requires warmStart() first");
+
+		int round = 0, changes;
+		do {
+			beginIteration();
+			int[] indexPermutation = randomPermutation(delta.size());
+			performClustering(indexPermutation, delta, this.clusters);
+
+			for (int ic = 0; ic < k; ic++) {
+				clusters[ic].updatePrototype(delta, warmModel.prototypes[ic], warmModel.sizes[ic]);
+				clusters[ic].refreshNorm(metric);
+			}
+
+			changes = totalMembershipChanges(this.clusters);
+			endIteration(round, (long)delta.size() * k, changes, inertia);
+			round++;
+		} while (round < passes && changes > 0);
+
+		double[] drift = drift(warmModel);
+		if (verbose)
+			System.out.format("Retrained on %d rows in %d passes, drift: mean %.6f, max %.6f\n", delta.size(), round, drift[0], drift[1]);
+		return drift;
+	}
+
 	/****************************** TESTING METHODS *******************************/
 
 	/// Returns a list of all Clusters containing indices 0 -> n.
@@ -285,8 +538,8 @@ public class KMeans extends ClusteringAlgorithm
 			float[] p = assignedClusters[i].prototype;
 
 			for (int j = 0; j < dim; j++) {
-				Boolean wasPrefetched = (p[i] > prefetchThreshold);
-				Boolean requested = (v[i] != 0);
+				Boolean wasPrefetched = (p[j] > prefetchThreshold);
+				Boolean requested = (v[j] != 0);
 				
 				/// Add to requests.
 				requests += (requested ? 1 : 0);
@@ -303,7 +556,8 @@ public class KMeans extends ClusteringAlgorithm
 		/// Assign to global variables.
 		this.hitrate = ((double)hits / (double)requests);
 		this.accuracy = ((double)hits / (double)prefetched);
-		showTest();
+		if (verbose)
+			showTest();
 		return true;
 	}
 
@@ -342,6 +596,27 @@ public class KMeans extends ClusteringAlgorithm
 		this.prefetchThreshold = prefetchThreshold;
 	}
 
+	public int clusterCount()
+	{
+		return k;
+	}
+
+	public float[] getPrototype(int c)
+	{
+		return clusters[c].prototype;
+	}
+
+	/// After warmStart() this is the size of the old cluster plus its delta members.
+	public int clusterSize(int c)
+	{
+		return (warmModel == null ? 0 : warmModel.sizes[c]) + clusters[c].currentMembers.size();
+	}
+
+	public Set<Integer> getMembers(int c)
+	{
+		return clusters[c].currentMembers;
+	}
+
 	/******************************* PRINTING METHODS *****************************/
 
 	/// Prints the state of all clusters.
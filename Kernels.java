@@ -0,0 +1,35 @@
+public interface Kernels
+{
+	// The float loops that dominate training and assignment. The implementation is chosen once at
+	// startup: SimdKernels (simd/SimdKernels.java, built on jdk.incubator.vector) when it was compiled
+	// and the JVM runs with --add-modules jdk.incubator.vector, ScalarKernels otherwise. Setting the
+	// system property clustering.simd=false forces the scalar kernels.
+
+	Kernels INSTANCE = select();
+
+	/// Sum of squared differences of a and b.
+	double squaredDistance(float[] a, float[] b);
+
+	/// Moves p towards x: p[i] += rate * (x[i] - p[i]).
+	void moveTowards(float[] p, float[] x, float rate);
+
+	/// Adds x to sum: sum[i] += x[i].
+	void accumulate(float[] sum, float[] x);
+
+	/// Divides every element of v by d.
+	void divide(float[] v, float d);
+
+	static Kernels select()
+	{
+		if (!"false".equals(System.getProperty("clustering.simd"))
+			&& ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				return (Kernels)Class.forName("SimdKernels").getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | LinkageError e) {
+				// Not compiled in, fall back to the scalar kernels
+			}
+		}
+		return new ScalarKernels();
+	}
+}
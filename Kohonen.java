@@ -1,3 +1,4 @@
+import java.io.*;
 import java.util.*;
 
 public class Kohonen extends ClusteringAlgorithm
@@ -23,6 +24,25 @@ public class Kohonen extends ClusteringAlgorithm
 	// Vector which contains the train/test data
 	private Vector<float[]> trainData;
 	private Vector<float[]> testData;
+
+	// Model the codebook was initialized from by warmStart(), null for a random start
+	private Model warmModel;
+
+	// Distance found by the last call of findBMU(), and the BMU of every training point in the last epoch
+	private double lastDistance;
+	private int[] lastBMU;
+
+	// Weight of every training point while train() runs on collapsed rows, null otherwise
+	private int[] weights;
+
+	// Progressive training: side of the first map (0 for direct training) and the epochs of the
+	// fine-tuning after every upsampling, see setProgressive()
+	private int progressiveStart;
+	private int fineTuneEpochs;
+
+	// Initial radius and learning rate of the fine-tuning schedule after an upsampling
+	public static final double FINE_TUNE_RADIUS = 2;
+	public static final double FINE_TUNE_RATE = 0.2;
 	
 	// Results of test()
 	private double hitrate;
@@ -32,6 +52,10 @@ public class Kohonen extends ClusteringAlgorithm
 	{
 			float[] prototype;
 
+			/// norm of the prototype under the metric, refreshed every epoch and, if the metric's
+			/// dense distance uses norms, after every change of the prototype
+			double norm;
+
 			/// variables to store the position of the BMU in the map
 			int x, y;
 
@@ -56,9 +80,26 @@ public class Kohonen extends ClusteringAlgorithm
 			{
 				prototype[idx] = value;
 			}
+
+			/// Caches the norm of the prototype, which some metrics need for every distance.
+			public void refreshNorm(DistanceMetric metric)
+			{
+				norm = metric.norm(prototype);
+			}
 	}
 	
 	public Kohonen(int n, int epochs, Vector<float[]> trainData, Vector<float[]> testData, int dim)
+	{
+		this(n, epochs, trainData, testData, dim, new Random());
+	}
+
+	/// Seeded variant, so that runs can be repeated.
+	public Kohonen(int n, int epochs, Vector<float[]> trainData, Vector<float[]> testData, int dim, long seed)
+	{
+		this(n, epochs, trainData, testData, dim, new Random(seed));
+	}
+
+	private Kohonen(int n, int epochs, Vector<float[]> trainData, Vector<float[]> testData, int dim, Random rnd)
 	{
 		this.n = n;
 		this.epochs = epochs;
@@ -68,7 +109,6 @@ public class Kohonen extends ClusteringAlgorithm
 		this.testData = testData; 
 		this.dim = dim;       
 		
-		Random rnd = new Random();
 		// Here n*n new cluster are initialized
 		clusters = new Cluster[n][n];
 		for (int i = 0; i < n; i++)  
@@ -86,6 +126,21 @@ public class Kohonen extends ClusteringAlgorithm
 				
 			}
 		}
+		refreshNorms();
+	}
+
+	/// Recomputes the cached norms of all prototypes.
+	private void refreshNorms()
+	{
+		for (int i = 0; i < n; i++)
+			for (int i2 = 0; i2 < n; i2++)
+				clusters[i][i2].refreshNorm(metric);
+	}
+
+	public void setMetric(DistanceMetric metric)
+	{
+		super.setMetric(metric);
+		refreshNorms();
 	}
 
 	/************************* TRAINING METHODS ****************************/
@@ -105,14 +160,17 @@ public class Kohonen extends ClusteringAlgorithm
 	public Cluster findBMU(float[] client)
 	{	
 		/// Find BMU by iterating through all prototypes
-		/// BMU is the prototype that is closest to the client array vector
+		/// BMU is the prototype that is closest to the client array vector under the selected metric
+		/// The norm of the client is computed once, those of the prototypes are cached
+		double clientNorm = metric.norm(client);
 		double minDist = Double.MAX_VALUE;
 		Cluster BMU = clusters[0][0];
 		for( int protIdx1 = 0; protIdx1 < this.n; protIdx1++ )
 		{
 			for( int protIdx2 = 0; protIdx2 < this.n; protIdx2++ )
 			{
-				double distToProt = euclideanDistance(client, clusters[protIdx1][protIdx2].getPrototype());
+				Cluster cluster = clusters[protIdx1][protIdx2];
+				double distToProt = metric.distance(client, clientNorm, cluster.getPrototype(), cluster.norm);
 				if (distToProt < minDist)
 				{
 					minDist = distToProt;
@@ -122,27 +180,28 @@ public class Kohonen extends ClusteringAlgorithm
 				}
 			}
 		}
+		lastDistance = minDist;
 		return BMU;
 	}
 
 	/// Adjust single cluster to make it more similar to the training vector
 	public void adjustCluster(double learnRate, Cluster cluster, float[] trainVec)
 	{
-	    float[] prototypeOfCluster = cluster.getPrototype();
-        for(int i = 0; i < trainVec.length; i++)
-        {
-            prototypeOfCluster[i] = (float) ((1-learnRate) * prototypeOfCluster[i] + learnRate * trainVec[i]);
-        }
-        cluster.setPrototype(prototypeOfCluster);
+	    /// (1 - learnRate) * p + learnRate * x, computed as p + learnRate * (x - p) in float
+	    Kernels.INSTANCE.moveTowards(cluster.getPrototype(), trainVec, (float)learnRate);
+	    if (metric.denseUsesNorms())
+	        cluster.refreshNorm(metric);
 	}
 
 
 	/// Adjust all prototypes in the neighbourhood of the BMU
 	public void adjustNeighbourhood(Cluster BMU, double radius, double learnRate, float[] trainVec)
 	{
-		for( int protIdx1 = 0; protIdx1 < this.n; protIdx1++ )
+		/// Only the square around the BMU can be within the (Manhattan) radius
+		int reach = (int)Math.min(radius, this.n);
+		for( int protIdx1 = Math.max(0, BMU.x - reach); protIdx1 <= Math.min(this.n - 1, BMU.x + reach); protIdx1++ )
 		{
-			for( int protIdx2 = 0; protIdx2 < this.n; protIdx2++ )
+			for( int protIdx2 = Math.max(0, BMU.y - reach); protIdx2 <= Math.min(this.n - 1, BMU.y + reach); protIdx2++ )
 			{
 				/// If a prototype is within the radius and therefore in the neighbourhood, adjust it
 				int manHatDist = Math.abs(protIdx1-BMU.x) + Math.abs(protIdx2-BMU.y);
@@ -157,36 +216,299 @@ public class Kohonen extends ClusteringAlgorithm
 
 	public boolean train()
 	{
+		/// Optionally train on weighted points (collapsed rows or a coreset) instead of the rows
+		Vector<float[]> data = trainData;
+		WeightedRows weighted = weightedRows(trainData);
+		if (weighted != null)
+		{
+			data = weighted.points;
+			weights = weighted.weights;
+		}
+
+		if (progressiveStart > 0 && progressiveStart < n)
+			trainProgressive(data);
+		else
+			trainDirect(data);
+
+		/// Add train data to membership sets of clusters, mostly for visualization purposes
+		/// This membership assignment is not necessary, as it can be also calculated on the go in the test phase
+		/// Collapsed rows are assigned once per distinct row; after a coreset all rows are assigned.
+		weights = null;
+		if (weighted == null || !weighted.isComplete())
+		{
+		    assignMembers(trainData);
+		    return true;
+		}
+		for(int i = 0; i < data.size(); i++)
+		{
+		    Cluster closestPrototype = findBMU(data.get(i));
+		    for (int client : weighted.clientsOf(i))
+		        closestPrototype.currentMembers.add(client);
+		}
+
+		return true;
+	}
+
+	/// Trains the whole map for 'epochs' epochs.
+	private void trainDirect(Vector<float[]> data)
+	{
+		/// Continue from a checkpoint if one is given
+		int first = 0;
+		if (resumeFile != null)
+		{
+			first = restore(resumeFile, data.size());
+			if (verbose)
+				System.out.println("Resumed from " + resumeFile + " at epoch " + first);
+		}
+
 		/// Repeat 'epochs' times:
-		for( int t = 0; t < this.epochs; t++)
+		try (Checkpointer checkpoints = checkpointer())
+		{
+			for( int t = first; t < this.epochs; t++)
+			{
+				/// Print progress in percentages
+				if (verbose) {
+					System.out.print("\r[");
+					System.out.print(Math.round((1000.0*t)/this.epochs)/10.0+"%]");
+				}
+
+				/// Calculate current learning rate and radius
+				float learnRate = (float) 0.8 * (1 - ((float)t / this.epochs));
+				double radius = this.n / 2 * (1 - ((double)t / this.epochs));
+
+				trainEpoch(t, data, radius, learnRate);
+
+				if (checkpoints != null && t + 1 < this.epochs && checkpoints.due(t + 1))
+					checkpoints.save(checkpointState(t + 1));
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		if (verbose)
+			System.out.println();
+	}
+
+	/********************** PROGRESSIVE METHODS ****************/
+
+	/// Trains coarse-to-fine instead of training the n*n map directly: a start*start map is trained
+	/// for 'epochs' epochs, then repeatedly upsampled to twice its side (at most n) by bilinear
+	/// interpolation and fine-tuned for fineTuneEpochs epochs with a small radius and learning rate.
+	/// The large maps then see few epochs, each with a small neighbourhood. 0 trains directly.
+	/// Checkpoints are not supported in this mode.
+	public void setProgressive(int start, int fineTuneEpochs)
+	{
+		this.progressiveStart = start;
+		this.fineTuneEpochs = fineTuneEpochs;
+	}
+
+	private void trainProgressive(Vector<float[]> data)
+	{
+		if (checkpointFile != null || resumeFile != null)
+			throw new IllegalStateException("checkpoints are not supported in progressive training");
+
+		/// Start from the random prototypes in the corner of the map
+		int target = n;
+		resize(progressiveStart, false);
+		trainSchedule(data, epochs, n / 2.0, initialLearningRate);
+		if (verbose)
+			System.out.println("Trained " + n + "x" + n + " map for " + epochs + " epochs");
+
+		while (n < target)
+		{
+			resize(Math.min(2 * n, target), true);
+			trainSchedule(data, fineTuneEpochs, FINE_TUNE_RADIUS, FINE_TUNE_RATE);
+			if (verbose)
+				System.out.println("Upsampled to " + n + "x" + n + " and fine-tuned for " + fineTuneEpochs + " epochs");
+		}
+	}
+
+	/// Makes the map size*size: by bilinear interpolation of the prototypes if 'interpolate',
+	/// otherwise by keeping the top-left corner of the current map (size <= n).
+	private void resize(int size, boolean interpolate)
+	{
+		Cluster[][] resized = new Cluster[size][size];
+		for (int i = 0; i < size; i++)
 		{
-            		/// Print progress in percentages
-			System.out.print("\r[");
-			System.out.print(Math.round((1000.0*t)/this.epochs)/10.0+"%]");
+			for (int i2 = 0; i2 < size; i2++)
+			{
+				resized[i][i2] = new Cluster();
+				if (!interpolate)
+				{
+					resized[i][i2].setPrototype(clusters[i][i2].getPrototype());
+					continue;
+				}
 
-			/// Calculate current learning rate and radius
-			float learnRate = (float) 0.8 * (1 - (t / this.epochs));
-			double radius = this.n / 2 * (1 - (t / this.epochs));
+				/// Position of the new cluster in the coordinates of the current map
+				double x = (size == 1 ? 0 : (double)i * (n - 1) / (size - 1));
+				double y = (size == 1 ? 0 : (double)i2 * (n - 1) / (size - 1));
+				int x0 = Math.min((int)x, n - 1), y0 = Math.min((int)y, n - 1);
+				int x1 = Math.min(x0 + 1, n - 1), y1 = Math.min(y0 + 1, n - 1);
+				float fx = (float)(x - x0), fy = (float)(y - y0);
+
+				float[] p00 = clusters[x0][y0].getPrototype(), p01 = clusters[x0][y1].getPrototype();
+				float[] p10 = clusters[x1][y0].getPrototype(), p11 = clusters[x1][y1].getPrototype();
+				float[] p = new float[dim];
+				for (int j = 0; j < dim; j++)
+				{
+					float top = p00[j] + fy * (p01[j] - p00[j]);
+					float bottom = p10[j] + fy * (p11[j] - p10[j]);
+					p[j] = top + fx * (bottom - top);
+				}
+				resized[i][i2].setPrototype(p);
+			}
+		}
+		clusters = resized;
+		n = size;
+		lastBMU = null;
+		refreshNorms();
+	}
 
-			/// Iterate through all training points. Find BMU for each training point and adjust BMU's neighbourhood
-			for( int trainIdx = 0; trainIdx < trainData.size(); trainIdx++ )
+	/********************** CHECKPOINT METHODS ****************/
+
+	/// Copies the state after 'epoch' epochs: the codebook and the BMU of every training point in
+	/// the last epoch. The schedule only depends on the epoch, and training draws no random numbers,
+	/// so this is all a resumed run needs.
+	private Checkpointer.State checkpointState(int epoch)
+	{
+		float[][] codebook = new float[n * n][];
+		for (int c = 0; c < n * n; c++)
+			codebook[c] = getPrototype(c).clone();
+		int[] bmus = lastBMU.clone();
+
+		return out -> {
+			out.writeInt(n);
+			out.writeInt(dim);
+			out.writeInt(epochs);
+			out.writeInt(bmus.length);
+			out.writeInt(epoch);
+			for (int b : bmus)
+				out.writeInt(b);
+			for (float[] p : codebook)
+				for (float x : p)
+					out.writeFloat(x);
+		};
+	}
+
+	/// Restores the state written by checkpointState() and returns the epoch to continue with.
+	private int restore(String fileName, int points)
+	{
+		try (DataInputStream in = Checkpointer.open(fileName, getClass().getSimpleName()))
+		{
+			if (in.readInt() != n || in.readInt() != dim || in.readInt() != epochs || in.readInt() != points)
+				throw new IOException(fileName + " is a checkpoint of a different map, dimension, schedule or number of points");
+			int epoch = in.readInt();
+
+			lastBMU = new int[points];
+			for (int i = 0; i < points; i++)
+				lastBMU[i] = in.readInt();
+			for (int c = 0; c < n * n; c++)
 			{
-				float[] trainVec = trainData.get(trainIdx);
-				Cluster BMU = findBMU(trainVec);
-				adjustNeighbourhood(BMU, radius, learnRate, trainVec);
+				float[] p = new float[dim];
+				for (int j = 0; j < dim; j++)
+					p[j] = in.readFloat();
+				clusters[c / n][c % n].setPrototype(p);
 			}
+			refreshNorms();
+			return epoch;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
 		}
-		System.out.println();
+	}
 
-		/// Add train data to membership sets of clusters, mostly for visualization purposes
-		/// This membership assignment is not necessary, as it can be also calculated on the go in the test phase
-		for(int i = 0; i < trainData.size(); i++)
+	/********************** WARM-START METHODS ****************/
+
+	/// Initializes the codebook from a previously trained n*n map instead of random prototypes.
+	public void warmStart(Model model)
+	{
+		checkModel(model, n * n, dim);
+		warmModel = model;
+
+		for (int c = 0; c < n * n; c++) {
+			clusters[c / n][c % n].setPrototype(model.prototypes[c].clone());
+			clusters[c / n][c % n].currentMembers = new HashSet<Integer>();
+		}
+		refreshNorms();
+	}
+
+	/// Retrains a warm-started map on new or changed rows only, using a short schedule that starts
+	/// from a small radius and learning rate, both decaying linearly to zero.
+	/// Afterwards the members of the clusters are indices into delta. Returns the drift {mean, max}.
+	public double[] retrain(Vector<float[]> delta, int epochs, double initialRadius, double learnRate)
+	{
+		if (warmModel == null)
+			throw new IllegalStateException("retrain() requires warmStart() first");
+
+		trainSchedule(delta, epochs, initialRadius, learnRate);
+		assignMembers(delta);
+
+		double[] drift = drift(warmModel);
+		if (verbose)
+			System.out.format("Retrained on %d rows in %d epochs, drift: mean %.6f, max %.6f\n", delta.size(), epochs, drift[0], drift[1]);
+		return drift;
+	}
+
+	/// Trains the map on data for 'epochs' epochs, with radius and learning rate decaying linearly from
+	/// their initial values.
+	public void trainSchedule(Vector<float[]> data, int epochs, double initialRadius, double initialLearnRate)
+	{
+		for (int t = 0; t < epochs; t++)
+		{
+			double decay = 1 - ((double)t / epochs);
+			double learnRate = initialLearnRate * decay;
+			double radius = initialRadius * decay;
+
+			trainEpoch(t, data, radius, learnRate);
+		}
+	}
+
+	/// Runs one epoch: iterates through all training points, finds the BMU for each training point
+	/// and adjusts the BMU's neighbourhood. Publishes the metrics of the epoch.
+	/// A point of weight w is applied as w consecutive updates at once: each step moves every
+	/// neighbour by the same fraction towards the point, so the BMU does not change in between.
+	public void trainEpoch(int t, Vector<float[]> data, double radius, double learnRate)
+	{
+		beginIteration();
+		/// Prototypes may have been set from outside since the last epoch
+		refreshNorms();
+		if (lastBMU == null || lastBMU.length != data.size())
 		{
-		    Cluster closestPrototype = findBMU(trainData.get(i));
-		    closestPrototype.currentMembers.add(i);
+			lastBMU = new int[data.size()];
+			Arrays.fill(lastBMU, -1);
 		}
 
-		return true;
+		long reassigned = 0, total = 0;
+		double error = 0;
+		for (int trainIdx = 0; trainIdx < data.size(); trainIdx++)
+		{
+			float[] trainVec = data.get(trainIdx);
+			int weight = (weights == null ? 1 : weights[trainIdx]);
+			Cluster BMU = findBMU(trainVec);
+			adjustNeighbourhood(BMU, radius, WeightedRows.repeatedRate(learnRate, weight), trainVec);
+
+			/// Bookkeeping for the metrics
+			int bmuIndex = BMU.x * n + BMU.y;
+			reassigned += (lastBMU[trainIdx] == bmuIndex ? 0 : weight);
+			lastBMU[trainIdx] = bmuIndex;
+			error += weight * lastDistance;
+			total += weight;
+		}
+
+		endIteration(t, (long)data.size() * n * n, reassigned, (total == 0 ? 0 : error / total));
+	}
+
+	/// Makes every row of data a member of its BMU, clearing the old memberships.
+	public void assignMembers(Vector<float[]> data)
+	{
+		for (int i = 0; i < n; i++)
+			for (int i2 = 0; i2 < n; i2++)
+				clusters[i][i2].currentMembers = new HashSet<Integer>();
+
+		for (int i = 0; i < data.size(); i++)
+			findBMU(data.get(i)).currentMembers.add(i);
 	}
 
 	/********************** TEST METHODS ****************/
@@ -219,8 +541,8 @@ public class Kohonen extends ClusteringAlgorithm
 
                 for (int j = 0; j < dim; j++)
                 {
-                    Boolean wasPrefetched = (assignedPrototype[i] > prefetchThreshold);
-                    Boolean requested = (testDataClient[i] != 0);
+                    Boolean wasPrefetched = (assignedPrototype[j] > prefetchThreshold);
+                    Boolean requested = (testDataClient[j] != 0);
 
                     /// Add to requests.
                     requests += (requested ? 1 : 0);
@@ -235,7 +557,8 @@ public class Kohonen extends ClusteringAlgorithm
             }
             hitrate = hits/requests;
             accuracy = hits/(prefetched);
-            showTest();
+            if (verbose)
+                showTest();
 	    return true;
 	}
 
@@ -275,5 +598,63 @@ public class Kohonen extends ClusteringAlgorithm
 	{
 		this.prefetchThreshold = prefetchThreshold;
 	}
+
+	/// Clusters are numbered row by row: cluster[i][i2] has index i * n + i2.
+	public int clusterCount()
+	{
+		return n * n;
+	}
+
+	public float[] getPrototype(int c)
+	{
+		return clusters[c / n][c % n].getPrototype();
+	}
+
+	public int clusterSize(int c)
+	{
+		return clusters[c / n][c % n].currentMembers.size();
+	}
+
+	public Set<Integer> getMembers(int c)
+	{
+		return clusters[c / n][c % n].currentMembers;
+	}
+
+	/// Compares direct and progressive training of an n*n map with train(): quantization error
+	/// (mean squared distance of a training row to its prototype), wall time, hitrate and accuracy.
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 4 || args.length == 5)
+		{
+			System.out.println("usage: java Kohonen n epochs start fineTuneEpochs [traindata testdata] [seed]");
+			System.exit(1);
+		}
+
+		int n = Integer.parseInt(args[0]);
+		int epochs = Integer.parseInt(args[1]);
+		int start = Integer.parseInt(args[2]);
+		int fineTune = Integer.parseInt(args[3]);
+		Vector<float[]> trainData = RunClustering.readMatrix(args.length > 5 ? args[4] : "train.dat");
+		Vector<float[]> testData = RunClustering.readMatrix(args.length > 5 ? args[5] : "test.dat");
+		long seed = (args.length > 6 ? Long.parseLong(args[6]) : 1);
+		int dim = trainData.get(0).length;
+
+		System.out.format("%-24s %12s %16s %12s %12s\n", "training", "seconds", "quantization", "hitrate", "accuracy");
+		for (int progressive = 0; progressive < 2; progressive++)
+		{
+			Kohonen map = new Kohonen(n, epochs, trainData, testData, dim, seed);
+
+			long begin = System.nanoTime();
+			if (progressive == 1)
+				map.setProgressive(start, fineTune);
+			map.train();
+			double seconds = (System.nanoTime() - begin) / 1e9;
+
+			double error = Coreset.cost(map, trainData, null) / trainData.size();
+			double[] score = map.score(trainData, testData, map.prefetchThreshold);
+			String name = (progressive == 0 ? "direct " + n + "x" + n : "progressive from " + start + "x" + start);
+			System.out.format("%-24s %12.3f %16.6f %12.7f %12.7f\n", name, seconds, error, score[0], score[1]);
+		}
+	}
 }
 
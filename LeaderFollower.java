@@ -51,6 +51,9 @@ public class LeaderFollower extends ClusteringAlgorithm
 		
 		// Now we put the clusters in a vector because we don't know in advance how many clusters there will be.
 		clusters = new Vector<Cluster>();
+
+		// maxDis is a plain Euclidean distance, unless another metric is selected
+		metric = Metrics.EUCLIDEAN;
 	}
 
 	public boolean train()
@@ -58,19 +61,111 @@ public class LeaderFollower extends ClusteringAlgorithm
 		// classify for each trainDataPoint which cluster prototype is its NN,
 		// if the minimal distance < maxDis make it member of the cluster
 		// or else make a new cluster.
+		beginIteration();
+		long distances = 0;
+		double error = 0;
+
+		// Optionally train on weighted points (collapsed rows or a coreset): a point of weight w acts
+		// as w consecutive clients. The first of them leads or follows, the others follow the same cluster.
+		Vector<float[]> data = trainData;
+		WeightedRows weighted = weightedRows(trainData);
+		if (weighted != null)
+			data = weighted.points;
+
+		for (int i = 0; i < data.size(); i++) {
+			float[] v = data.get(i);
+			int weight = (weighted == null ? 1 : weighted.weights[i]);
+
+			/// Find the nearest leader
+			Cluster nearest = null;
+			double min = Double.MAX_VALUE;
+			for (Cluster c : clusters) {
+				double d = metric.distance(v, c.prototype);
+				distances++;
+				if (d < min) {
+					min = d;
+					nearest = c;
+				}
+			}
+
+			if (nearest != null && min < maxDis) {
+				/// Follow: join the cluster and move its prototype towards the point
+				addMembers(nearest, i, weighted);
+				Kernels.INSTANCE.moveTowards(nearest.prototype, v, (float)WeightedRows.repeatedRate(alpha, weight));
+				error += weight * min;
+			}
+			else {
+				/// Lead: the point starts a new cluster; its duplicates follow at distance 0
+				Cluster c = new Cluster();
+				c.prototype = v.clone();
+				addMembers(c, i, weighted);
+				clusters.add(c);
+			}
+		}
+
+		// A single pass assigns every point for the first time
+		endIteration(0, distances, trainData.size(), (trainData.size() == 0 ? 0 : error / trainData.size()));
+
+		// A coreset is a sample, so the clients are assigned to the nearest of the clusters it created
+		if (weighted != null && !weighted.isComplete()) {
+			for (Cluster c : clusters)
+				c.currentMembers = new HashSet<Integer>();
+			int[] assigned = new int[trainData.size()];
+			predict(trainData, assigned);
+			for (int i = 0; i < assigned.length; i++)
+				if (assigned[i] >= 0)
+					clusters.get(assigned[i]).currentMembers.add(i);
+		}
+
+		if (verbose)
+			System.out.println("Leader-Follower created " + clusters.size() + " clusters"
+				+ (weighted == null ? "" : " from " + weighted.size() + " weighted points"));
 		return true;
 	}
 
+	/// Makes training point i a member of c, or all clients of point i if it is a weighted point.
+	private static void addMembers(Cluster c, int i, WeightedRows weighted)
+	{
+		if (weighted == null)
+			c.currentMembers.add(i);
+		else
+			for (int client : weighted.clientsOf(i))
+				c.currentMembers.add(client);
+	}
+
 	public boolean test()
 	{
 		// iterate along all clients. Assumption: the same clients are in the same order as in the testData
 		// for each client find the cluster of which it is a member
-		// get the actual testData (the vector) of this client
-		// iterate along all dimensions
-		// and count prefetched htmls
-		// count number of hits
-		// count number of requests
+		int[] assigned = new int[testData.size()];
+		Arrays.fill(assigned, -1);
+		for (int c = 0; c < clusters.size(); c++)
+			for (Integer i : clusters.get(c).currentMembers)
+				if (i < assigned.length)
+					assigned[i] = c;
+
+		double requests = 0, prefetched = 0, hits = 0;
+		for (int i = 0; i < testData.size(); i++) {
+			// get the actual testData (the vector) of this client
+			float[] v = testData.get(i);
+			float[] p = (assigned[i] < 0 ? null : clusters.get(assigned[i]).prototype);
+
+			// iterate along all dimensions, count prefetched htmls, hits and requests
+			for (int j = 0; j < dim; j++) {
+				boolean requested = (v[j] != 0);
+				boolean wasPrefetched = (p != null && p[j] > prefetchThreshold);
+
+				requests += (requested ? 1 : 0);
+				prefetched += (wasPrefetched ? 1 : 0);
+				hits += (requested && wasPrefetched ? 1 : 0);
+			}
+		}
+
 		// set the global variables hitrate and accuracy to their appropriate value
+		hitrate = hits / requests;
+		accuracy = hits / prefetched;
+		if (verbose)
+			showTest();
 		return true;
 	}
 
@@ -110,4 +205,24 @@ public class LeaderFollower extends ClusteringAlgorithm
 	{
 		this.prefetchThreshold = prefetchThreshold;
 	}
+
+	public int clusterCount()
+	{
+		return clusters.size();
+	}
+
+	public float[] getPrototype(int c)
+	{
+		return clusters.get(c).prototype;
+	}
+
+	public int clusterSize(int c)
+	{
+		return clusters.get(c).currentMembers.size();
+	}
+
+	public Set<Integer> getMembers(int c)
+	{
+		return clusters.get(c).currentMembers;
+	}
 }
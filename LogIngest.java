@@ -0,0 +1,408 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class LogIngest
+{
+	// Builds clustering input directly from web access logs in Common Log Format:
+	//
+	//   host ident authuser [10/Oct/2000:13:55:36 -0700] "GET /path?query HTTP/1.0" 200 2326
+	//
+	// The logs are memory mapped and cut into chunks that are parsed in parallel. Every chunk interns
+	// hosts and URL paths into its own dictionaries; the chunks are then merged in file order, so the
+	// global ids are the order of first occurrence, the same for every number of threads. Only GET
+	// requests with a status below 400 are used, and the query string is dropped from the path.
+	//
+	// Requests before the cutoff time (a fraction 'split' into the time range of the logs) go to
+	// the training matrix, later ones to the test matrix. Both have a row for every client and a
+	// column for every URL, a 1.0 where the client requested the URL. Written to dir:
+	//
+	//   clients.dat, requests.dat    the host names and URL paths, one per line, in row and column order
+	//   train.*, test.*              the matrices: .dat dense text (as read by RunClustering), .sparse
+	//                                text with the column indices of every row, or .bin MatrixFiles
+	//
+	// Usage: java LogIngest [dir=.] [split=0.5] [format=dat|sparse|bin] [threads=cores] access.log ...
+
+	// Nominal chunk size; a chunk owns the lines that start in it
+	static final int CHUNK = 32 << 20;
+
+	// Longest line accepted, read past the end of a chunk
+	static final int MAX_LINE = 1 << 20;
+
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	// Result of parsing one chunk: its dictionaries and its requests in local ids
+	static class Chunk
+	{
+		List<String> hosts = new ArrayList<String>(), urls = new ArrayList<String>();
+		int[] client = new int[1024], url = new int[1024];
+		long[] time = new long[1024];
+		int count, lines, skipped;
+		long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+
+		void add(int c, int u, long t)
+		{
+			if (count == client.length) {
+				client = Arrays.copyOf(client, 2 * count);
+				url = Arrays.copyOf(url, 2 * count);
+				time = Arrays.copyOf(time, 2 * count);
+			}
+			client[count] = c;
+			url[count] = u;
+			time[count++] = t;
+			minTime = Math.min(minTime, t);
+			maxTime = Math.max(maxTime, t);
+		}
+	}
+
+	// Merged result: dictionaries and all requests in global ids
+	private List<String> hosts = new ArrayList<String>(), urls = new ArrayList<String>();
+	private List<Chunk> chunks = new ArrayList<Chunk>();
+	private long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+	private int lines, skipped;
+
+	/// Parses the log files on 'threads' threads and merges the chunks.
+	public LogIngest(List<String> fileNames, int threads) throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+		try {
+			for (String fileName : fileNames) {
+				long size = Files.size(Paths.get(fileName));
+				for (long start = 0; start < size; start += CHUNK) {
+					long s = start;
+					futures.add(executor.submit(() -> parse(fileName, s, Math.min(size, s + CHUNK), size)));
+				}
+			}
+
+			Map<String, Integer> hostIds = new HashMap<String, Integer>(), urlIds = new HashMap<String, Integer>();
+			for (Future<Chunk> future : futures)
+				merge(future.get(), hostIds, urlIds);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e) {
+			throw (e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause()));
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/// Maps the local ids of chunk to global ids, assigning new ids in order of first occurrence.
+	private void merge(Chunk chunk, Map<String, Integer> hostIds, Map<String, Integer> urlIds)
+	{
+		int[] hostMap = intern(chunk.hosts, hostIds, hosts);
+		int[] urlMap = intern(chunk.urls, urlIds, urls);
+		for (int i = 0; i < chunk.count; i++) {
+			chunk.client[i] = hostMap[chunk.client[i]];
+			chunk.url[i] = urlMap[chunk.url[i]];
+		}
+
+		chunks.add(chunk);
+		minTime = Math.min(minTime, chunk.minTime);
+		maxTime = Math.max(maxTime, chunk.maxTime);
+		lines += chunk.lines;
+		skipped += chunk.skipped;
+	}
+
+	private static int[] intern(List<String> local, Map<String, Integer> ids, List<String> names)
+	{
+		int[] map = new int[local.size()];
+		for (int i = 0; i < map.length; i++) {
+			Integer id = ids.putIfAbsent(local.get(i), names.size());
+			if (id == null) {
+				id = names.size();
+				names.add(local.get(i));
+			}
+			map[i] = id;
+		}
+		return map;
+	}
+
+	/******************************* PARSING ***************************************/
+
+	/// Parses the lines of fileName that start in [start, end).
+	static Chunk parse(String fileName, long start, long end, long size) throws IOException
+	{
+		Chunk chunk = new Chunk();
+		Map<String, Integer> hostIds = new HashMap<String, Integer>(), urlIds = new HashMap<String, Integer>();
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			/// Map from one byte before the chunk, to see whether a line starts at 'start'.
+			long from = Math.max(0, start - 1);
+			long to = Math.min(size, end + MAX_LINE);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+			int limit = (int)(to - from), owned = (int)(end - from);
+
+			int p = 0;
+			if (start > 0) {
+				while (p < limit && buffer.get(p) != '\n')
+					p++;
+				p++;
+			}
+
+			byte[] line = new byte[256];
+			String[] cache = new String[2];   // last date string and its epoch day, see parseTime()
+			long[] day = new long[1];
+			while (p < owned && p < limit) {
+				int e = p;
+				while (e < limit && buffer.get(e) != '\n')
+					e++;
+				if (e == limit && to < size)
+					throw new IOException(fileName + ": line at " + (from + p) + " is longer than " + MAX_LINE + " bytes");
+
+				int length = e - p;
+				if (length > line.length)
+					line = new byte[Math.max(length, 2 * line.length)];
+				buffer.get(p, line, 0, length);
+				chunk.lines++;
+				if (!parseLine(line, length, chunk, hostIds, urlIds, cache, day))
+					chunk.skipped++;
+				p = e + 1;
+			}
+		}
+		return chunk;
+	}
+
+	/// Parses one line into chunk. Returns false if the line is malformed; filtered requests count as parsed.
+	private static boolean parseLine(byte[] b, int n, Chunk chunk, Map<String, Integer> hostIds, Map<String, Integer> urlIds,
+		String[] cache, long[] day)
+	{
+		if (n > 0 && b[n - 1] == '\r')
+			n--;
+
+		int hostEnd = indexOf(b, 0, n, (byte)' ');
+		int timeStart = indexOf(b, hostEnd, n, (byte)'[');
+		int timeEnd = indexOf(b, timeStart, n, (byte)']');
+		int requestStart = indexOf(b, timeEnd, n, (byte)'"');
+		int requestEnd = indexOf(b, requestStart + 1, n, (byte)'"');
+		if (hostEnd <= 0 || timeEnd < 0 || requestEnd < 0)
+			return false;
+
+		/// "METHOD path PROTOCOL" status
+		int methodEnd = indexOf(b, requestStart + 1, requestEnd, (byte)' ');
+		if (methodEnd < 0)
+			return false;
+		int pathEnd = indexOf(b, methodEnd + 1, requestEnd, (byte)' ');
+		if (pathEnd < 0)
+			pathEnd = requestEnd;
+		int query = indexOf(b, methodEnd + 1, pathEnd, (byte)'?');
+		if (query >= 0)
+			pathEnd = query;
+
+		int status = 0, s = requestEnd + 1;
+		while (s < n && b[s] == ' ')
+			s++;
+		for (; s < n && b[s] >= '0' && b[s] <= '9'; s++)
+			status = 10 * status + (b[s] - '0');
+
+		long time = parseTime(b, timeStart + 1, timeEnd, cache, day);
+		if (time == Long.MIN_VALUE || status == 0)
+			return false;
+
+		boolean get = (methodEnd - requestStart - 1 == 3 && b[requestStart + 1] == 'G' && b[requestStart + 2] == 'E' && b[requestStart + 3] == 'T');
+		if (!get || status >= 400 || pathEnd <= methodEnd + 1)
+			return true;
+
+		int client = id(new String(b, 0, hostEnd, StandardCharsets.ISO_8859_1), hostIds, chunk.hosts);
+		int url = id(new String(b, methodEnd + 1, pathEnd - methodEnd - 1, StandardCharsets.ISO_8859_1), urlIds, chunk.urls);
+		chunk.add(client, url, time);
+		return true;
+	}
+
+	private static int id(String name, Map<String, Integer> ids, List<String> names)
+	{
+		Integer id = ids.putIfAbsent(name, names.size());
+		if (id != null)
+			return id;
+		names.add(name);
+		return names.size() - 1;
+	}
+
+	private static int indexOf(byte[] b, int from, int to, byte c)
+	{
+		if (from < 0)
+			return -1;
+		for (int i = from; i < to; i++)
+			if (b[i] == c)
+				return i;
+		return -1;
+	}
+
+	/// Parses "10/Oct/2000:13:55:36 -0700" in b[from, to) to seconds since the epoch (UTC), or
+	/// Long.MIN_VALUE if malformed. The epoch day of the last date seen is cached, as consecutive
+	/// lines nearly always share the date.
+	private static long parseTime(byte[] b, int from, int to, String[] cache, long[] day)
+	{
+		if (to - from < 20 || b[from + 2] != '/' || b[from + 6] != '/' || b[from + 11] != ':')
+			return Long.MIN_VALUE;
+
+		String date = new String(b, from, 11, StandardCharsets.ISO_8859_1);
+		if (!date.equals(cache[0])) {
+			int month = Arrays.asList(MONTHS).indexOf(date.substring(3, 6));
+			try {
+				if (month < 0)
+					return Long.MIN_VALUE;
+				day[0] = java.time.LocalDate.of(Integer.parseInt(date.substring(7, 11)), month + 1, Integer.parseInt(date.substring(0, 2))).toEpochDay();
+				cache[0] = date;
+			}
+			catch (RuntimeException e) {
+				return Long.MIN_VALUE;
+			}
+		}
+
+		long seconds = day[0] * 86400 + 3600 * digits(b, from + 12) + 60 * digits(b, from + 15) + digits(b, from + 18);
+		if (to - from >= 26 && (b[from + 21] == '+' || b[from + 21] == '-')) {
+			long offset = 3600 * digits(b, from + 22) + 60 * digits(b, from + 24);
+			seconds -= (b[from + 21] == '+' ? offset : -offset);
+		}
+		return seconds;
+	}
+
+	private static int digits(byte[] b, int i)
+	{
+		return 10 * (b[i] - '0') + (b[i + 1] - '0');
+	}
+
+	/******************************* OUTPUT ****************************************/
+
+	/// Returns the time separating training from test requests, a fraction 'split' into the time range.
+	public long cutoff(double split)
+	{
+		return minTime + (long)Math.ceil(split * (maxTime - minTime));
+	}
+
+	/// Writes the dictionaries and the train and test matrices to dir. Requests before cutoff are
+	/// training requests. format is "dat", "sparse" or "bin".
+	public void write(File dir, long cutoff, String format) throws IOException
+	{
+		dir.mkdirs();
+		writeNames(new File(dir, "clients.dat"), hosts);
+		writeNames(new File(dir, "requests.dat"), urls);
+
+		int[][] train = rows(cutoff, true), test = rows(cutoff, false);
+		writeMatrix(new File(dir, "train." + format), train, format);
+		writeMatrix(new File(dir, "test." + format), test, format);
+	}
+
+	/// Returns, for every client, the sorted distinct URLs of its training (or test) requests.
+	private int[][] rows(long cutoff, boolean training)
+	{
+		int[] counts = new int[hosts.size()];
+		for (Chunk chunk : chunks)
+			for (int i = 0; i < chunk.count; i++)
+				if ((chunk.time[i] < cutoff) == training)
+					counts[chunk.client[i]]++;
+
+		int[][] rows = new int[hosts.size()][];
+		for (int c = 0; c < rows.length; c++)
+			rows[c] = new int[counts[c]];
+		Arrays.fill(counts, 0);
+		for (Chunk chunk : chunks)
+			for (int i = 0; i < chunk.count; i++)
+				if ((chunk.time[i] < cutoff) == training)
+					rows[chunk.client[i]][counts[chunk.client[i]]++] = chunk.url[i];
+
+		for (int c = 0; c < rows.length; c++) {
+			int[] row = rows[c];
+			Arrays.sort(row);
+			int distinct = 0;
+			for (int i = 0; i < row.length; i++)
+				if (i == 0 || row[i] != row[i - 1])
+					row[distinct++] = row[i];
+			rows[c] = Arrays.copyOf(row, distinct);
+		}
+		return rows;
+	}
+
+	private void writeMatrix(File file, int[][] rows, String format) throws IOException
+	{
+		int dim = urls.size();
+		if (format.equals("sparse")) {
+			try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 20))) {
+				out.println("sparse " + rows.length + " " + dim);
+				StringBuilder sb = new StringBuilder();
+				for (int[] row : rows) {
+					sb.setLength(0);
+					for (int i = 0; i < row.length; i++)
+						sb.append(i == 0 ? "" : " ").append(row[i]);
+					out.println(sb);
+				}
+			}
+			return;
+		}
+
+		boolean[] dense = new boolean[dim];
+		if (format.equals("bin")) {
+			try (MatrixFile.Writer out = new MatrixFile.Writer(file.getPath(), rows.length, dim)) {
+				for (int[] row : rows) {
+					set(dense, row, true);
+					out.write(dense);
+					set(dense, row, false);
+				}
+			}
+			return;
+		}
+
+		if (!format.equals("dat"))
+			throw new IllegalArgumentException("unknown format '" + format + "'");
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+			byte[] line = new byte[4 * dim];
+			for (int[] row : rows) {
+				set(dense, row, true);
+				out.write(line, 0, GenerateData.format(dense, line));
+				set(dense, row, false);
+			}
+		}
+	}
+
+	private static void set(boolean[] dense, int[] indices, boolean value)
+	{
+		for (int j : indices)
+			dense[j] = value;
+	}
+
+	private static void writeNames(File file, List<String> names) throws IOException
+	{
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16))) {
+			for (String name : names)
+				out.println(name);
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		List<String> logs = new ArrayList<String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				logs.add(arg);
+			else
+				options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		if (logs.isEmpty()) {
+			System.out.println("usage: java LogIngest [dir=.] [split=0.5] [format=dat|sparse|bin] [threads=N] access.log ...");
+			System.exit(1);
+		}
+
+		long start = System.nanoTime();
+		int threads = Integer.parseInt(options.getOrDefault("threads", "" + Runtime.getRuntime().availableProcessors()));
+		LogIngest ingest = new LogIngest(logs, threads);
+		long parsed = System.nanoTime();
+
+		long cutoff = ingest.cutoff(Double.parseDouble(options.getOrDefault("split", "0.5")));
+		ingest.write(new File(options.getOrDefault("dir", ".")), cutoff, options.getOrDefault("format", "dat"));
+
+		System.out.format("%d lines (%d malformed), %d clients x %d URLs, cutoff %s\n", ingest.lines, ingest.skipped,
+			ingest.hosts.size(), ingest.urls.size(), java.time.Instant.ofEpochSecond(cutoff));
+		System.out.format("Parsed in %.2f s, written in %.2f s\n", (parsed - start) / 1e9, (System.nanoTime() - parsed) / 1e9);
+	}
+}
@@ -0,0 +1,252 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+public class MatrixFile implements Closeable
+{
+	// A binary matrix file that can be read in large blocks, for data that does not fit in memory.
+	//
+	// Layout: the int MAGIC, the number of rows (long) and the dimension (int), followed by the rows
+	// as little-endian float32 values, row after row. All header values are big-endian.
+	//
+	// Usage: java MatrixFile in.dat out.bin    converts a RunClustering data file
+
+	public static final int MAGIC = 0x434c4d58;   // "CLMX"
+	public static final int HEADER = 16;
+
+	// Default size of a block in bytes; a pass holds two blocks and two read buffers of this size
+	public static final long BLOCK_BYTES = 16 << 20;
+
+	// One block of consecutive rows. The arrays are reused, only the first 'count' rows are valid.
+	public static class Block
+	{
+		public long firstRow;
+		public int count;
+		public float[][] rows;
+
+		Block(int blockRows, int dim)
+		{
+			rows = new float[blockRows][dim];
+		}
+	}
+
+	// Receives the blocks of a pass in order
+	public interface BlockConsumer
+	{
+		void block(Block block) throws IOException;
+	}
+
+	private FileChannel channel;
+	private long rows;
+	private int dim;
+
+	public MatrixFile(String fileName) throws IOException
+	{
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		while (header.hasRemaining() && channel.read(header, header.position()) >= 0);
+		header.flip();
+		if (header.remaining() < HEADER || header.getInt() != MAGIC)
+			throw new IOException(fileName + " is not a matrix file");
+
+		rows = header.getLong();
+		dim = header.getInt();
+		if (channel.size() < HEADER + rows * dim * 4)
+			throw new IOException(fileName + " is truncated");
+	}
+
+	public long rows()
+	{
+		return rows;
+	}
+
+	public int dim()
+	{
+		return dim;
+	}
+
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/// Returns the number of rows in a block of BLOCK_BYTES, at least one.
+	public int blockRows()
+	{
+		return (int)Math.max(1, Math.min(Integer.MAX_VALUE, BLOCK_BYTES / (dim * 4L)));
+	}
+
+	/// Passes all rows in blocks of blockRows rows to consumer. While the consumer works on one block,
+	/// a background thread reads the next one into a second buffer.
+	public void forEachBlock(int blockRows, BlockConsumer consumer) throws IOException
+	{
+		long blockBytes = (long)blockRows * dim * 4;
+		if (blockBytes > Integer.MAX_VALUE)
+			throw new IOException("a block of " + blockRows + " rows of dimension " + dim + " does not fit in a buffer");
+
+		ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "MatrixFile prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+
+		try {
+			Block[] blocks = { new Block(blockRows, dim), new Block(blockRows, dim) };
+			ByteBuffer[] buffers = {
+				ByteBuffer.allocateDirect((int)blockBytes).order(ByteOrder.LITTLE_ENDIAN),
+				ByteBuffer.allocateDirect((int)blockBytes).order(ByteOrder.LITTLE_ENDIAN)
+			};
+
+			Future<Block> next = prefetcher.submit(() -> read(0, blocks[0], buffers[0]));
+			for (long first = 0, b = 0; first < rows; first += blockRows, b++) {
+				Block current = next.get();
+
+				long following = first + blockRows;
+				if (following < rows) {
+					int i = (int)((b + 1) % 2);
+					next = prefetcher.submit(() -> read(following, blocks[i], buffers[i]));
+				}
+				consumer.block(current);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e) {
+			throw (e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause()));
+		}
+		finally {
+			prefetcher.shutdownNow();
+		}
+	}
+
+	/// As forEachBlock(int, BlockConsumer) with blockRows() rows per block.
+	public void forEachBlock(BlockConsumer consumer) throws IOException
+	{
+		forEachBlock(blockRows(), consumer);
+	}
+
+	/// Reads the rows starting at firstRow into block, using buffer.
+	private Block read(long firstRow, Block block, ByteBuffer buffer) throws IOException
+	{
+		int count = (int)Math.min(block.rows.length, rows - firstRow);
+		long position = HEADER + firstRow * dim * 4;
+
+		// count * dim * 4 fits in an int, forEachBlock() checked the block size
+		buffer.clear().limit(count * dim * 4);
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0)
+				throw new EOFException("matrix file ends before row " + (firstRow + count));
+		}
+		buffer.flip();
+
+		FloatBuffer floats = buffer.asFloatBuffer();
+		for (int i = 0; i < count; i++)
+			floats.get(block.rows[i]);
+
+		block.firstRow = firstRow;
+		block.count = count;
+		return block;
+	}
+
+	/******************************* WRITING ***************************************/
+
+	// Writes a matrix file row by row
+	public static class Writer implements Closeable
+	{
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private long rows, written;
+		private int dim;
+
+		public Writer(String fileName, long rows, int dim) throws IOException
+		{
+			this.rows = rows;
+			this.dim = dim;
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			buffer = ByteBuffer.allocateDirect(Math.max(1 << 20, dim * 4)).order(ByteOrder.LITTLE_ENDIAN);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).putLong(rows).putInt(dim).flip();
+			while (header.hasRemaining())
+				channel.write(header);
+		}
+
+		public void write(float[] row) throws IOException
+		{
+			if (row.length != dim)
+				throw new IOException("row of size " + row.length + ", expected " + dim);
+			if (buffer.remaining() < dim * 4)
+				flush();
+			for (float x : row)
+				buffer.putFloat(x);
+			written++;
+		}
+
+		/// Writes a binary row given as booleans.
+		public void write(boolean[] row) throws IOException
+		{
+			if (buffer.remaining() < dim * 4)
+				flush();
+			for (boolean x : row)
+				buffer.putFloat(x ? 1 : 0);
+			written++;
+		}
+
+		private void flush() throws IOException
+		{
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		public void close() throws IOException
+		{
+			try {
+				flush();
+				if (written != rows)
+					throw new IOException("wrote " + written + " rows, header says " + rows);
+			}
+			finally {
+				channel.close();
+			}
+		}
+	}
+
+	/// Converts a RunClustering data file (one vector per line) to a matrix file. Streams the input
+	/// twice: once to count the rows, once to convert them.
+	public static void convert(String datFileName, String matrixFileName) throws IOException
+	{
+		long rows = 0;
+		int dim = 0;
+		try (BufferedReader br = new BufferedReader(new FileReader(datFileName), 1 << 16)) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (rows++ == 0)
+					dim = ClusteringAlgorithm.parseVector(line).length;
+			}
+		}
+
+		try (BufferedReader br = new BufferedReader(new FileReader(datFileName), 1 << 16);
+		     Writer out = new Writer(matrixFileName, rows, dim)) {
+			String line;
+			while ((line = br.readLine()) != null)
+				out.write(ClusteringAlgorithm.parseVector(line));
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 2) {
+			System.out.println("usage: java MatrixFile in.dat out.bin");
+			System.exit(1);
+		}
+		convert(args[0], args[1]);
+	}
+}
@@ -0,0 +1,274 @@
+import java.util.*;
+
+public final class Metrics
+{
+	// The available distance metrics, and helpers to convert dense vectors to the sparse encoding
+	// used by their kernels.
+
+	public static final DistanceMetric EUCLIDEAN = new Euclidean();
+	public static final DistanceMetric SQUARED_EUCLIDEAN = new SquaredEuclidean();
+	public static final DistanceMetric COSINE = new Cosine();
+	public static final DistanceMetric JACCARD = new Jaccard();
+	public static final DistanceMetric HAMMING = new Hamming();
+
+	private Metrics()
+	{
+	}
+
+	/// Returns the metric with the given name: euclidean, sqeuclidean, cosine, jaccard (or tanimoto) or hamming.
+	public static DistanceMetric forName(String name)
+	{
+		switch (name.toLowerCase()) {
+			case "euclidean":
+				return EUCLIDEAN;
+			case "sqeuclidean":
+				return SQUARED_EUCLIDEAN;
+			case "cosine":
+				return COSINE;
+			case "jaccard":
+			case "tanimoto":
+				return JACCARD;
+			case "hamming":
+				return HAMMING;
+		}
+		throw new IllegalArgumentException("unknown metric '" + name + "'");
+	}
+
+	/// Returns the name forName() takes for one of the metrics above.
+	public static String name(DistanceMetric metric)
+	{
+		if (metric == EUCLIDEAN)
+			return "euclidean";
+		if (metric == SQUARED_EUCLIDEAN)
+			return "sqeuclidean";
+		if (metric == COSINE)
+			return "cosine";
+		if (metric == JACCARD)
+			return "jaccard";
+		if (metric == HAMMING)
+			return "hamming";
+		throw new IllegalArgumentException("metric " + metric.getClass().getName() + " has no name");
+	}
+
+	/******************************* ENCODINGS *************************************/
+
+	/// Returns the indices of the non-zero elements of v.
+	public static int[] nonZeroIndices(float[] v)
+	{
+		int nnz = 0;
+		for (float x : v)
+			nnz += (x != 0 ? 1 : 0);
+
+		int[] idx = new int[nnz];
+		for (int j = 0, p = 0; j < v.length; j++)
+			if (v[j] != 0)
+				idx[p++] = j;
+		return idx;
+	}
+
+	/// Returns the values of v at the given indices.
+	public static float[] gather(float[] v, int[] idx)
+	{
+		float[] val = new float[idx.length];
+		for (int p = 0; p < idx.length; p++)
+			val[p] = v[idx[p]];
+		return val;
+	}
+
+	/******************************* KERNEL HELPERS ********************************/
+
+	static double dot(float[] a, float[] b)
+	{
+		double d = 0;
+		for (int j = 0; j < a.length; j++)
+			d += a[j] * b[j];
+		return d;
+	}
+
+	static double dot(int[] idx, float[] val, float[] b)
+	{
+		double d = 0;
+		for (int p = 0; p < idx.length; p++)
+			d += val[p] * b[idx[p]];
+		return d;
+	}
+
+	static double sumOfSquares(float[] a, int n)
+	{
+		double d = 0;
+		for (int j = 0; j < n; j++)
+			d += a[j] * a[j];
+		return d;
+	}
+
+	/******************************* METRICS ***************************************/
+
+	// Sum of squared differences. Orders vectors exactly like Euclidean distance without the sqrt,
+	// so it is the default for finding the nearest prototype. Norm: sum of squares.
+	static class SquaredEuclidean implements DistanceMetric
+	{
+		public double distance(float[] a, float[] b)
+		{
+			return Kernels.INSTANCE.squaredDistance(a, b);
+		}
+
+		/// |a - b|^2 = |a|^2 + |b|^2 - 2 a.b, so only the non-zeros of a are visited.
+		public double distance(int[] idx, float[] val, double aNorm, float[] b, double bNorm)
+		{
+			return Math.max(0, aNorm + bNorm - 2 * dot(idx, val, b));
+		}
+
+		public double norm(float[] a)
+		{
+			return sumOfSquares(a, a.length);
+		}
+
+		public double norm(float[] val, int nnz)
+		{
+			return sumOfSquares(val, nnz);
+		}
+	}
+
+	// Plain Euclidean distance, for thresholds that are given in Euclidean units (Leader-Follower's maxDis).
+	static class Euclidean extends SquaredEuclidean
+	{
+		public double distance(float[] a, float[] b)
+		{
+			return Math.sqrt(super.distance(a, b));
+		}
+
+		public double distance(int[] idx, float[] val, double aNorm, float[] b, double bNorm)
+		{
+			return Math.sqrt(super.distance(idx, val, aNorm, b, bNorm));
+		}
+	}
+
+	// 1 - cosine similarity. Norm: Euclidean length. Zero vectors are at distance 1 from everything.
+	static class Cosine implements DistanceMetric
+	{
+		public double distance(float[] a, float[] b)
+		{
+			double ab = 0, aa = 0, bb = 0;
+			for (int j = 0; j < a.length; j++) {
+				ab += a[j] * b[j];
+				aa += a[j] * a[j];
+				bb += b[j] * b[j];
+			}
+			return cosine(ab, Math.sqrt(aa), Math.sqrt(bb));
+		}
+
+		public boolean denseUsesNorms()
+		{
+			return true;
+		}
+
+		public double distance(float[] a, double aNorm, float[] b, double bNorm)
+		{
+			return cosine(dot(a, b), aNorm, bNorm);
+		}
+
+		public double distance(int[] idx, float[] val, double aNorm, float[] b, double bNorm)
+		{
+			return cosine(dot(idx, val, b), aNorm, bNorm);
+		}
+
+		public double norm(float[] a)
+		{
+			return Math.sqrt(sumOfSquares(a, a.length));
+		}
+
+		public double norm(float[] val, int nnz)
+		{
+			return Math.sqrt(sumOfSquares(val, nnz));
+		}
+
+		private static double cosine(double ab, double aNorm, double bNorm)
+		{
+			return (aNorm == 0 || bNorm == 0 ? 1 : 1 - ab / (aNorm * bNorm));
+		}
+	}
+
+	// 1 - Tanimoto similarity a.b / (|a|^2 + |b|^2 - a.b), which is the Jaccard distance for binary
+	// vectors. Norm: sum of squares. Two zero vectors are at distance 0.
+	static class Jaccard implements DistanceMetric
+	{
+		public double distance(float[] a, float[] b)
+		{
+			double ab = 0, aa = 0, bb = 0;
+			for (int j = 0; j < a.length; j++) {
+				ab += a[j] * b[j];
+				aa += a[j] * a[j];
+				bb += b[j] * b[j];
+			}
+			return tanimoto(ab, aa, bb);
+		}
+
+		public boolean denseUsesNorms()
+		{
+			return true;
+		}
+
+		public double distance(float[] a, double aNorm, float[] b, double bNorm)
+		{
+			return tanimoto(dot(a, b), aNorm, bNorm);
+		}
+
+		public double distance(int[] idx, float[] val, double aNorm, float[] b, double bNorm)
+		{
+			return tanimoto(dot(idx, val, b), aNorm, bNorm);
+		}
+
+		public double norm(float[] a)
+		{
+			return sumOfSquares(a, a.length);
+		}
+
+		public double norm(float[] val, int nnz)
+		{
+			return sumOfSquares(val, nnz);
+		}
+
+		private static double tanimoto(double ab, double aa, double bb)
+		{
+			double union = aa + bb - ab;
+			return (union <= 0 ? 0 : 1 - ab / union);
+		}
+	}
+
+	// Sum of absolute differences, which is the Hamming distance for binary vectors and stays
+	// meaningful for real-valued prototypes. Norm: sum of absolute values.
+	static class Hamming implements DistanceMetric
+	{
+		public double distance(float[] a, float[] b)
+		{
+			double d = 0;
+			for (int j = 0; j < a.length; j++)
+				d += Math.abs(b[j] - a[j]);
+			return d;
+		}
+
+		/// Starts from |b|_1 and corrects it at the non-zeros of a.
+		public double distance(int[] idx, float[] val, double aNorm, float[] b, double bNorm)
+		{
+			double d = bNorm;
+			for (int p = 0; p < idx.length; p++) {
+				float x = b[idx[p]];
+				d += Math.abs(val[p] - x) - Math.abs(x);
+			}
+			return Math.max(0, d);
+		}
+
+		public double norm(float[] a)
+		{
+			return norm(a, a.length);
+		}
+
+		public double norm(float[] val, int nnz)
+		{
+			double d = 0;
+			for (int p = 0; p < nnz; p++)
+				d += Math.abs(val[p]);
+			return d;
+		}
+	}
+}
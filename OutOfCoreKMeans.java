@@ -0,0 +1,252 @@
+import java.io.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class OutOfCoreKMeans extends ClusteringAlgorithm
+{
+	// K-means over a MatrixFile that does not have to fit in memory. Every Lloyd iteration is one
+	// sequential pass over the file in blocks: the rows of a block are assigned in parallel, then
+	// added to the sums of their clusters. Only the prototypes, the sums and one int per row (its
+	// cluster) are kept in memory. The sums are doubles: a float sum stops growing once a cluster
+	// has about 2^24 rows.
+	//
+	// Usage: java OutOfCoreKMeans k train.bin [test.bin] [seed] [maxPasses]
+	//
+	// The initial partition is drawn like KMeans.train() draws it for the same seed.
+
+	private int k, dim, maxPasses;
+	private long seed;
+	private double prefetchThreshold;
+	private String trainFileName, testFileName;
+
+	private float[][] prototypes;
+	private double[] norms;
+	private int[] assignment;
+
+	// Results of test()
+	private double hitrate;
+	private double accuracy;
+
+	public OutOfCoreKMeans(int k, String trainFileName, String testFileName, long seed, int maxPasses)
+	{
+		this.k = k;
+		this.trainFileName = trainFileName;
+		this.testFileName = testFileName;
+		this.seed = seed;
+		this.maxPasses = maxPasses;
+		prefetchThreshold = 0.5;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2) {
+			System.out.println("usage: java OutOfCoreKMeans k train.bin [test.bin] [seed] [maxPasses]");
+			System.exit(1);
+		}
+
+		OutOfCoreKMeans ca = new OutOfCoreKMeans(Integer.parseInt(args[0]), args[1], (args.length > 2 ? args[2] : null),
+			(args.length > 3 ? Long.parseLong(args[3]) : 1), (args.length > 4 ? Integer.parseInt(args[4]) : Integer.MAX_VALUE));
+		ca.setVerbose(true);
+		ca.train();
+		if (args.length > 2)
+			ca.test();
+	}
+
+	/******************************* TRAINING METHODS *****************************/
+
+	public boolean train()
+	{
+		try (MatrixFile file = new MatrixFile(trainFileName)) {
+			if (file.rows() > Integer.MAX_VALUE)
+				throw new IOException("too many rows for the assignment array");
+
+			int n = (int)file.rows();
+			dim = file.dim();
+
+			/// Step 1: random partition, the same one KMeans.train() draws for this seed.
+			KMeans reference = new KMeans(k, new Vector<float[]>(), new Vector<float[]>(), dim, seed);
+			int[] indices = reference.randomPermutation(n);
+			assignment = new int[n];
+			for (int i = 0; i < n; i++)
+				assignment[indices[i]] = i % k;
+
+			double[][] sums = new double[k][dim];
+			long[] counts = new long[k];
+			file.forEachBlock(block -> {
+				for (int i = 0; i < block.count; i++)
+					add(sums, counts, assignment[(int)block.firstRow + i], block.rows[i]);
+			});
+			setPrototypes(sums, counts);
+
+			/// Steps 2 and 3: one streaming pass per round, until the memberships are stable.
+			int round = 0;
+			long delta;
+			do {
+				beginIteration();
+				long[] changes = { 0 };
+				double[] inertia = { 0 };
+				double[][] newSums = new double[k][dim];
+				long[] newCounts = new long[k];
+				int[] closest = new int[file.blockRows()];
+				double[] distances = new double[file.blockRows()];
+
+				file.forEachBlock(block -> {
+					int first = (int)block.firstRow;
+					IntStream.range(0, block.count).parallel().forEach(i -> closest[i] = closest(block.rows[i], distances, i));
+
+					for (int i = 0; i < block.count; i++) {
+						changes[0] += (assignment[first + i] == closest[i] ? 0 : 1);
+						assignment[first + i] = closest[i];
+						add(newSums, newCounts, closest[i], block.rows[i]);
+						inertia[0] += distances[i];
+					}
+				});
+
+				setPrototypes(newSums, newCounts);
+				delta = changes[0];
+				endIteration(round, (long)n * k, delta, inertia[0]);
+
+				if (verbose)
+					System.out.format("Pass %d, changed = %d\n", round, delta);
+				round++;
+			} while (delta > 0 && round < maxPasses);
+
+			if (verbose)
+				System.out.format("Stopped after pass %d\n", round);
+			return true;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/// Returns the cluster closest to v and stores its distance in distances[i].
+	private int closest(float[] v, double[] distances, int i)
+	{
+		int best = 0;
+		double d, min = Double.MAX_VALUE;
+		double norm = metric.norm(v);
+
+		for (int c = 0; c < k; c++) {
+			if ((d = metric.distance(v, norm, prototypes[c], norms[c])) < min) {
+				min = d;
+				best = c;
+			}
+		}
+		distances[i] = min;
+		return best;
+	}
+
+	private static void add(double[][] sums, long[] counts, int c, float[] v)
+	{
+		double[] sum = sums[c];
+		for (int j = 0; j < v.length; j++)
+			sum[j] += v[j];
+		counts[c]++;
+	}
+
+	/// The new prototypes are the means of the sums, as in KMeans.Cluster.updatePrototype().
+	private void setPrototypes(double[][] sums, long[] counts)
+	{
+		prototypes = new float[k][dim];
+		norms = new double[k];
+		for (int c = 0; c < k; c++) {
+			for (int j = 0; j < dim; j++)
+				prototypes[c][j] = (float)(sums[c][j] / counts[c]);
+			norms[c] = metric.norm(prototypes[c]);
+		}
+	}
+
+	/****************************** TESTING METHODS *******************************/
+
+	/// Streams the test file; client i is assigned to the cluster of training row i.
+	public boolean test()
+	{
+		long[] totals = new long[3];   // requests, prefetched, hits
+
+		try (MatrixFile file = new MatrixFile(testFileName)) {
+			file.forEachBlock(block -> {
+				for (int i = 0; i < block.count && block.firstRow + i < assignment.length; i++) {
+					float[] v = block.rows[i], p = prototypes[assignment[(int)block.firstRow + i]];
+					for (int j = 0; j < v.length; j++) {
+						boolean requested = (v[j] != 0), wasPrefetched = (p[j] > prefetchThreshold);
+						totals[0] += (requested ? 1 : 0);
+						totals[1] += (wasPrefetched ? 1 : 0);
+						totals[2] += (requested && wasPrefetched ? 1 : 0);
+					}
+				}
+			});
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		hitrate = (double)totals[2] / totals[0];
+		accuracy = (double)totals[2] / totals[1];
+		if (verbose)
+			showTest();
+		return true;
+	}
+
+	public void showTest()
+	{
+		System.out.println("Prefetch threshold=" + prefetchThreshold);
+		System.out.println("Hitrate: " + hitrate);
+		System.out.println("Accuracy: " + accuracy);
+		System.out.println("Hitrate+Accuracy=" + (hitrate + accuracy));
+	}
+
+	public void showMembers()
+	{
+		for (int c = 0; c < k; c++)
+			System.out.println("\nMembers cluster[" + c + "] :" + getMembers(c));
+	}
+
+	public void showPrototypes()
+	{
+		for (int c = 0; c < k; c++)
+			System.out.println("\nPrototype cluster[" + c + "] :" + Arrays.toString(prototypes[c]));
+	}
+
+	public void setPrefetchThreshold(double prefetchThreshold)
+	{
+		this.prefetchThreshold = prefetchThreshold;
+	}
+
+	public int clusterCount()
+	{
+		return k;
+	}
+
+	public float[] getPrototype(int c)
+	{
+		return prototypes[c];
+	}
+
+	public int clusterSize(int c)
+	{
+		int size = 0;
+		for (int a : assignment)
+			size += (a == c ? 1 : 0);
+		return size;
+	}
+
+	public Set<Integer> getMembers(int c)
+	{
+		Set<Integer> members = new TreeSet<Integer>();
+		for (int i = 0; i < assignment.length; i++)
+			if (assignment[i] == c)
+				members.add(i);
+		return members;
+	}
+
+	public int[] assignments()
+	{
+		return assignment.clone();
+	}
+
+	public int[] clusterSizes()
+	{
+		return clusterSizes(assignment, clusterCount());
+	}
+}
@@ -0,0 +1,228 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class PrefetchPlan
+{
+	// Prefetch plans under a per-client budget, instead of a global prefetch threshold. For every
+	// cluster the URLs are ranked by prototype value, the estimated probability that a member
+	// requests them, or by value per byte when URL sizes are given; the plan takes URLs in that
+	// order as long as they fit in the budget (a number of URLs, or a number of bytes with sizes).
+	// URLs with value 0 are never prefetched.
+	//
+	// The plans are stored compactly, the URLs of cluster c at urls[start[c] .. start[c + 1] - 1].
+	// refresh() hashes the prototypes and rebuilds only the plans of clusters whose prototype
+	// changed since the last build.
+	//
+	// Usage: java PrefetchPlan kmeans|kohonen|leader parameter budget [traindata testdata] [sizes]
+	//        sizes is a file with the size in bytes of every URL, one per line in requests.dat order
+
+	private ClusteringAlgorithm ca;
+	private double budget;
+
+	// Size of every URL in bytes, null to count URLs
+	private float[] sizes;
+
+	// The plan of cluster c is urls[start[c] .. start[c + 1] - 1], best URL first
+	private int[] start = new int[1];
+	private int[] urls = new int[0];
+
+	// Hash of the prototype every plan was built from
+	private long[] hashes = new long[0];
+
+	/// Plans of at most 'budget' URLs per client, or 'budget' bytes if sizes is not null.
+	public PrefetchPlan(ClusteringAlgorithm ca, double budget, float[] sizes)
+	{
+		this.ca = ca;
+		this.budget = budget;
+		this.sizes = sizes;
+		refresh();
+	}
+
+	/// Rebuilds the plans of the clusters whose prototype changed; returns their number.
+	public int refresh()
+	{
+		int count = ca.clusterCount();
+		long[] newHashes = new long[count];
+		IntStream.range(0, count).parallel().forEach(c -> newHashes[c] = hash(ca.getPrototype(c)));
+
+		int[][] plans = new int[count][];
+		IntStream.range(0, count).parallel().forEach(c -> {
+			if (c + 1 < start.length && c < hashes.length && hashes[c] == newHashes[c])
+				plans[c] = Arrays.copyOfRange(urls, start[c], start[c + 1]);
+			else
+				plans[c] = build(ca.getPrototype(c));
+		});
+
+		int changed = 0;
+		for (int c = 0; c < count; c++)
+			if (c >= hashes.length || hashes[c] != newHashes[c])
+				changed++;
+
+		int[] newStart = new int[count + 1];
+		for (int c = 0; c < count; c++)
+			newStart[c + 1] = newStart[c] + plans[c].length;
+		int[] newUrls = new int[newStart[count]];
+		for (int c = 0; c < count; c++)
+			System.arraycopy(plans[c], 0, newUrls, newStart[c], plans[c].length);
+
+		start = newStart;
+		urls = newUrls;
+		hashes = newHashes;
+		return changed;
+	}
+
+	/// Sets a new budget and rebuilds all plans.
+	public void setBudget(double budget)
+	{
+		this.budget = budget;
+		hashes = new long[0];
+		refresh();
+	}
+
+	/// Returns the plan for prototype p: URLs by decreasing value (per byte), within the budget.
+	private int[] build(float[] p)
+	{
+		// Sort by decreasing key with the order-preserving bits of -key in the high half
+		int n = 0;
+		long[] keys = new long[p.length];
+		for (int j = 0; j < p.length; j++)
+			if (p[j] > 0) {
+				float key = (sizes == null ? p[j] : p[j] / Math.max(sizes[j], 1));
+				int bits = Float.floatToIntBits(-key);
+				keys[n++] = ((long)(bits ^ ((bits >> 31) & 0x7fffffff)) << 32) | j;
+			}
+		Arrays.sort(keys, 0, n);
+
+		int[] plan = new int[n];
+		int m = 0;
+		double used = 0;
+		for (int i = 0; i < n; i++) {
+			int j = (int)keys[i];
+			double size = (sizes == null ? 1 : sizes[j]);
+			if (used + size > budget) {
+				if (sizes == null)
+					break;
+				// A smaller URL further down may still fit
+				continue;
+			}
+			used += size;
+			plan[m++] = j;
+		}
+		return Arrays.copyOf(plan, m);
+	}
+
+	private static long hash(float[] p)
+	{
+		long h = p.length;
+		for (int j = 0; j < p.length; j++)
+			h = (h ^ Float.floatToIntBits(p[j])) * 0x100000001b3L;
+		return h ^ (h >>> 29);
+	}
+
+	/// Returns the URLs prefetched for a member of cluster c, best first.
+	public int[] plan(int c)
+	{
+		return Arrays.copyOfRange(urls, start[c], start[c + 1]);
+	}
+
+	public int planSize(int c)
+	{
+		return start[c + 1] - start[c];
+	}
+
+	/// Returns {hitrate, accuracy, URLs per client, bytes per client} when client i is assigned to
+	/// cluster assigned[i] (-1 for none) and prefetches the plan of that cluster. Bytes are only
+	/// counted when sizes are known.
+	public double[] score(int[] assigned, List<float[]> testRows)
+	{
+		int n = testRows.size();
+		long prefetched = 0, hits = 0, requests = 0;
+		double bytes = 0;
+		for (int i = 0; i < n; i++) {
+			float[] v = testRows.get(i);
+			for (int j = 0; j < v.length; j++)
+				requests += (v[j] != 0 ? 1 : 0);
+
+			int c = assigned[i];
+			if (c < 0)
+				continue;
+			for (int r = start[c]; r < start[c + 1]; r++) {
+				int j = urls[r];
+				prefetched++;
+				hits += (v[j] != 0 ? 1 : 0);
+				bytes += (sizes == null ? 0 : sizes[j]);
+			}
+		}
+
+		return new double[] { (double)hits / requests, (double)hits / prefetched, (double)prefetched / n, bytes / n };
+	}
+
+	/// Scores with every client assigned to the cluster closest to trainRows[i].
+	public double[] score(List<float[]> trainRows, List<float[]> testRows)
+	{
+		int[] assigned = new int[testRows.size()];
+		ca.predict(trainRows.subList(0, assigned.length), assigned);
+		return score(assigned, testRows);
+	}
+
+	/// Reads one URL size per line.
+	public static float[] readSizes(String fileName) throws IOException
+	{
+		List<String> lines = Files.readAllLines(Paths.get(fileName));
+		float[] sizes = new float[lines.size()];
+		for (int j = 0; j < sizes.length; j++)
+			sizes[j] = Float.parseFloat(lines.get(j).trim());
+		return sizes;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 3 || args.length == 4) {
+			System.out.println("usage: java PrefetchPlan kmeans|kohonen|leader parameter budget [traindata testdata] [sizes]");
+			System.exit(1);
+		}
+
+		double parameter = Double.parseDouble(args[1]);
+		double budget = Double.parseDouble(args[2]);
+		Vector<float[]> trainData = RunClustering.readMatrix(args.length > 4 ? args[3] : "train.dat");
+		Vector<float[]> testData = RunClustering.readMatrix(args.length > 4 ? args[4] : "test.dat");
+		float[] sizes = (args.length > 5 ? readSizes(args[5]) : null);
+
+		ClusteringAlgorithm ca = Coreset.create(args[0], parameter, trainData, testData, 1);
+		ca.train();
+
+		long start = System.nanoTime();
+		PrefetchPlan plans = new PrefetchPlan(ca, budget, sizes);
+		long buildNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		int rebuilt = plans.refresh();
+		long refreshNanos = System.nanoTime() - start;
+
+		System.out.format("Plans for %d clusters built in %.2f ms, refresh rebuilt %d in %.2f ms\n",
+			ca.clusterCount(), buildNanos / 1e6, rebuilt, refreshNanos / 1e6);
+		System.out.format("%-16s %12s %12s %12s %14s\n", "policy", "hitrate", "accuracy", "URLs/client", "bytes/client");
+		int[] assigned = new int[testData.size()];
+		ca.predict(trainData.subList(0, assigned.length), assigned);
+		double[] s = plans.score(assigned, testData);
+		System.out.format("%-16s %12.7f %12.7f %12.2f %14.0f\n", "budget " + args[2], s[0], s[1], s[2], s[3]);
+
+		// The threshold policy for comparison
+		for (double threshold : new double[] { 0.25, 0.5, 0.75 }) {
+			double[] t = ca.score(assigned, testData, threshold);
+			long prefetched = 0;
+			double bytes = 0;
+			for (int c : assigned) {
+				float[] p = ca.getPrototype(c);
+				for (int j = 0; j < p.length; j++)
+					if (p[j] > threshold) {
+						prefetched++;
+						bytes += (sizes == null ? 0 : sizes[j]);
+					}
+			}
+			System.out.format("%-16s %12.7f %12.7f %12.2f %14.0f\n", "threshold " + threshold, t[0], t[1],
+				(double)prefetched / assigned.length, bytes / assigned.length);
+		}
+	}
+}
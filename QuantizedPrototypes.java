@@ -0,0 +1,248 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class QuantizedPrototypes
+{
+	// An int8 copy of the prototypes of a trained model, for nearest-prototype lookups when the
+	// float prototypes no longer fit in cache. Every dimension j is quantized linearly between the
+	// smallest and largest value of the prototypes in that dimension:
+	//
+	//   prototype[c][j] ~ offset[j] + scale[j] * code[j][c],  code in 0..255
+	//
+	// The codes are stored dimension by dimension, so a lookup reads, for every non-zero element of
+	// the client vector, one contiguous run of 'count' bytes. The approximate squared Euclidean
+	// distance of every prototype starts from its precomputed distance to the zero vector and is
+	// corrected at the non-zeros only. The 'rerank' candidates with the smallest approximate
+	// distance are then compared with the exact float prototypes. The scan approximates squared
+	// Euclidean distance, so the result matches ClusteringAlgorithm.predict() under the (squared)
+	// Euclidean metrics.
+	//
+	// A prototype with a NaN or infinite value (KMeans gives an empty cluster a NaN prototype) is
+	// never closest in ClusteringAlgorithm.predict(). It is left out of the value ranges and gets an
+	// infinite approximate distance, so it is never a candidate either.
+	//
+	// Usage: java QuantizedPrototypes k [rerank=4] [traindata testdata] [threshold=0.5]
+	//        compares exact and quantized assignment of a KMeans model.
+	//        java QuantizedPrototypes --check [n] [dim] [k] [seed]
+	//        checks quantized against exact assignment with an empty cluster, exits with status 1
+	//        on a mismatch.
+
+	private int count, dim, rerank;
+	private float[] offset, scale;
+
+	// Codes of all prototypes, dimension after dimension: codes[j * count + c]
+	private byte[] codes;
+
+	// Approximate squared distance of every prototype to the zero vector
+	private float[] zeroDistance;
+
+	// Exact prototypes, for the re-ranking
+	private float[][] prototypes;
+
+	public QuantizedPrototypes(ClusteringAlgorithm ca, int rerank)
+	{
+		this.count = ca.clusterCount();
+		this.rerank = Math.max(1, Math.min(rerank, count));
+		prototypes = new float[count][];
+		for (int c = 0; c < count; c++)
+			prototypes[c] = ca.getPrototype(c).clone();
+		dim = (count == 0 ? 0 : prototypes[0].length);
+
+		boolean[] finite = new boolean[count];
+		for (int c = 0; c < count; c++) {
+			finite[c] = true;
+			for (float x : prototypes[c])
+				finite[c] &= Float.isFinite(x);
+		}
+
+		offset = new float[dim];
+		scale = new float[dim];
+		for (int j = 0; j < dim; j++) {
+			float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+			for (int c = 0; c < count; c++)
+				if (finite[c]) {
+					min = Math.min(min, prototypes[c][j]);
+					max = Math.max(max, prototypes[c][j]);
+				}
+			offset[j] = (min <= max ? min : 0);
+			scale[j] = (min <= max ? (max - min) / 255 : 0);
+		}
+
+		codes = new byte[count * dim];
+		zeroDistance = new float[count];
+		for (int c = 0; c < count; c++)
+			if (!finite[c])
+				zeroDistance[c] = Float.POSITIVE_INFINITY;
+		for (int j = 0; j < dim; j++)
+			for (int c = 0; c < count; c++) {
+				if (!finite[c])
+					continue;
+				int q = (scale[j] == 0 ? 0 : Math.round((prototypes[c][j] - offset[j]) / scale[j]));
+				codes[j * count + c] = (byte)Math.max(0, Math.min(255, q));
+
+				float t = offset[j] + scale[j] * (codes[j * count + c] & 0xff);
+				zeroDistance[c] += t * t;
+			}
+	}
+
+	/// Returns the cluster whose prototype is closest to v, or -1 if there are no clusters.
+	public int predict(float[] v)
+	{
+		return predict(v, new float[count]);
+	}
+
+	/// As predict(float[]), with a scratch array of clusterCount floats.
+	private int predict(float[] v, float[] distance)
+	{
+		if (count == 0)
+			return -1;
+
+		/// With p = offset + scale * q:  (v - p)^2 - (0 - p)^2 = v * (v - 2 * offset - 2 * scale * q).
+		System.arraycopy(zeroDistance, 0, distance, 0, count);
+		for (int j = 0; j < dim; j++) {
+			float x = v[j];
+			if (x == 0)
+				continue;
+
+			float a = x * (x - 2 * offset[j]), b = 2 * x * scale[j];
+			for (int c = 0, base = j * count; c < count; c++)
+				distance[c] += a - b * (codes[base + c] & 0xff);
+		}
+
+		/// Keep the 'rerank' smallest approximate distances, sorted ascending.
+		int[] candidates = new int[rerank];
+		float[] best = new float[rerank];
+		Arrays.fill(best, Float.MAX_VALUE);
+
+		for (int c = 0; c < count; c++) {
+			float d = distance[c];
+			if (d < best[rerank - 1]) {
+				int p = rerank - 1;
+				for (; p > 0 && best[p - 1] > d; p--) {
+					best[p] = best[p - 1];
+					candidates[p] = candidates[p - 1];
+				}
+				best[p] = d;
+				candidates[p] = c;
+			}
+		}
+
+		/// Re-rank the candidates with the exact prototypes.
+		int closest = -1;
+		double min = Double.MAX_VALUE;
+		for (int p = 0; p < rerank && best[p] != Float.MAX_VALUE; p++) {
+			double d = Kernels.INSTANCE.squaredDistance(v, prototypes[candidates[p]]);
+			if (d < min || (d == min && candidates[p] < closest)) {
+				min = d;
+				closest = candidates[p];
+			}
+		}
+		return closest;
+	}
+
+	/// Assigns every row of data to its closest cluster, in parallel blocks like ClusteringAlgorithm.predict().
+	public void predict(List<float[]> data, int[] out)
+	{
+		float[][] rows = data.toArray(new float[data.size()][]);
+		int blocks = (rows.length + ClusteringAlgorithm.PREDICT_BLOCK - 1) / ClusteringAlgorithm.PREDICT_BLOCK;
+
+		IntStream.range(0, blocks).parallel().forEach(b -> {
+			int end = Math.min(rows.length, (b + 1) * ClusteringAlgorithm.PREDICT_BLOCK);
+			float[] distance = new float[count];
+			for (int i = b * ClusteringAlgorithm.PREDICT_BLOCK; i < end; i++)
+				out[i] = predict(rows[i], distance);
+		});
+	}
+
+	/// Bytes used by the codes, against 4 * count * dim for the float prototypes.
+	public long codeBytes()
+	{
+		return codes.length;
+	}
+
+	/// Compares quantized with exact assignment of the rows of trainRows: prints the fraction of
+	/// rows that get the same cluster, the lookup times, and hitrate/accuracy of both on testRows.
+	public static void compare(ClusteringAlgorithm ca, int rerank, List<float[]> trainRows, List<float[]> testRows, double threshold)
+	{
+		QuantizedPrototypes q = new QuantizedPrototypes(ca, rerank);
+		int n = testRows.size();
+		int[] exact = new int[n], quantized = new int[n];
+
+		/// Warm up both paths, then time them.
+		for (int r = 0; r < 5; r++) {
+			ca.predict(trainRows.subList(0, n), exact);
+			q.predict(trainRows.subList(0, n), quantized);
+		}
+
+		long start = System.nanoTime();
+		ca.predict(trainRows.subList(0, n), exact);
+		long exactNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		q.predict(trainRows.subList(0, n), quantized);
+		long quantizedNanos = System.nanoTime() - start;
+
+		int same = 0;
+		for (int i = 0; i < n; i++)
+			same += (exact[i] == quantized[i] ? 1 : 0);
+
+		double[] exactScore = ca.score(exact, testRows, threshold);
+		double[] quantizedScore = ca.score(quantized, testRows, threshold);
+
+		System.out.format("Clusters %d, dim %d, rerank %d, prototype bytes %d -> %d\n", q.count, q.dim, q.rerank, 4L * q.count * q.dim, q.codeBytes());
+		System.out.format("Same assignment:\t %.5f (%d of %d)\n", (n == 0 ? 1 : (double)same / n), same, n);
+		System.out.format("Lookup time:\t\t exact %.1f ns/row, quantized %.1f ns/row\n", (double)exactNanos / n, (double)quantizedNanos / n);
+		System.out.format("Exact:\t\t\t hitrate %.7f, accuracy %.7f\n", exactScore[0], exactScore[1]);
+		System.out.format("Quantized:\t\t hitrate %.7f, accuracy %.7f\n", quantizedScore[0], quantizedScore[1]);
+		System.out.format("Hitrate change:\t\t %+.7f\n", quantizedScore[0] - exactScore[0]);
+	}
+
+	/// Trains a KMeans on random rows, empties cluster 0 (a NaN prototype, as KMeans gives an empty
+	/// cluster) and compares quantized with exact assignment of every row, with all candidates
+	/// re-ranked so that both must agree. Returns the number of mismatches.
+	private static int check(int n, int dim, int k, long seed)
+	{
+		Vector<float[]> data = GenerateData.uniform(n, dim, 0.2, seed);
+		KMeans km = new KMeans(k, data, data, dim, seed);
+		km.train();
+		Arrays.fill(km.getPrototype(0), Float.NaN);
+
+		int[] exact = new int[n], quantized = new int[n];
+		km.predict(data, exact);
+		new QuantizedPrototypes(km, k).predict(data, quantized);
+
+		int mismatches = 0;
+		for (int i = 0; i < n; i++)
+			if (exact[i] != quantized[i] && mismatches++ < 10)
+				System.out.println("mismatch at row " + i + ": quantized " + quantized[i] + ", exact " + exact[i]);
+		return mismatches;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length > 0 && args[0].equals("--check")) {
+			int n = (args.length > 1 ? Integer.parseInt(args[1]) : 2000);
+			int dim = (args.length > 2 ? Integer.parseInt(args[2]) : 100);
+			int k = (args.length > 3 ? Integer.parseInt(args[3]) : 16);
+			long seed = (args.length > 4 ? Long.parseLong(args[4]) : 1);
+			int mismatches = check(n, dim, k, seed);
+			System.out.println(mismatches == 0 ? "QuantizedPrototypes matches the exact scan" : mismatches + " mismatches");
+			System.exit(mismatches == 0 ? 0 : 1);
+		}
+
+		if (args.length < 1) {
+			System.out.println("usage: java QuantizedPrototypes k [rerank] [traindata testdata] [threshold]");
+			System.exit(1);
+		}
+
+		int k = Integer.parseInt(args[0]);
+		int rerank = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+		Vector<float[]> trainData = RunClustering.readMatrix(args.length > 3 ? args[2] : "train.dat");
+		Vector<float[]> testData = RunClustering.readMatrix(args.length > 3 ? args[3] : "test.dat");
+		double threshold = (args.length > 4 ? Double.parseDouble(args[4]) : 0.5);
+
+		KMeans km = new KMeans(k, trainData, testData, trainData.get(0).length, 1);
+		km.train();
+		compare(km, rerank, trainData, testData, threshold);
+	}
+}
@@ -0,0 +1,83 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class RandomProjection
+{
+	// A sparse random projection from dim to width dimensions. Every input dimension (URL) j is
+	// hashed to 'hashes' output dimensions, each with a random sign and magnitude 1 / sqrt(hashes):
+	//
+	//   y[bucket(j, r)] += sign(j, r) * x[j] / sqrt(hashes),   r = 0 .. hashes - 1
+	//
+	// With hashes = 1 this is feature hashing of the URL ids into a fixed width; with more hashes
+	// it is a sparse Johnson-Lindenstrauss projection. Squared Euclidean distances and inner
+	// products are preserved in expectation, so the Euclidean and cosine metrics stay meaningful in
+	// the reduced space; Jaccard and Hamming, which expect binary vectors, do not.
+	//
+	// Projecting a row costs O(dim) to find its non-zeros plus O(nnz * hashes); the buckets and
+	// signs are derived from the seed, so the same seed always gives the same projection.
+
+	private int dim, width, hashes;
+
+	// Output dimension and signed weight of hash r of input dimension j, at index j * hashes + r
+	private int[] buckets;
+	private float[] weights;
+
+	public RandomProjection(int dim, int width, int hashes, long seed)
+	{
+		if (width <= 0 || hashes <= 0)
+			throw new IllegalArgumentException("width and hashes must be positive");
+
+		this.dim = dim;
+		this.width = width;
+		this.hashes = hashes;
+		buckets = new int[dim * hashes];
+		weights = new float[dim * hashes];
+
+		float magnitude = (float)(1 / Math.sqrt(hashes));
+		for (int i = 0; i < dim * hashes; i++) {
+			long h = mix(seed + 0x9e3779b97f4a7c15L * (i + 1));
+			buckets[i] = (int)Math.floorMod(h >>> 1, (long)width);
+			weights[i] = (h < 0 ? -magnitude : magnitude);
+		}
+	}
+
+	public int dim()
+	{
+		return dim;
+	}
+
+	public int width()
+	{
+		return width;
+	}
+
+	/// Returns the projection of v.
+	public float[] project(float[] v)
+	{
+		float[] y = new float[width];
+		for (int j = 0; j < dim; j++) {
+			float x = v[j];
+			if (x == 0)
+				continue;
+			for (int i = j * hashes; i < (j + 1) * hashes; i++)
+				y[buckets[i]] += weights[i] * x;
+		}
+		return y;
+	}
+
+	/// Returns the projections of all rows, computed in parallel.
+	public Vector<float[]> project(List<float[]> rows)
+	{
+		float[][] projected = new float[rows.size()][];
+		IntStream.range(0, projected.length).parallel().forEach(i -> projected[i] = project(rows.get(i)));
+		return new Vector<float[]>(Arrays.asList(projected));
+	}
+
+	/// The finalizer of SplitMix64, a good 64-bit mixing function.
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
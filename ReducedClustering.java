@@ -0,0 +1,215 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class ReducedClustering extends ClusteringAlgorithm
+{
+	// Runs a clustering algorithm on randomly projected rows, so that distance computations cost
+	// O(width) instead of O(number of URLs). The prefetch decision still needs a value per URL, so
+	// after training the prototype of every cluster is reconstructed in the original space as the
+	// mean of the original rows of its members.
+	//
+	// Assignment (predict, score) projects the row and compares it with the reduced prototypes of
+	// the inner algorithm; getPrototype() returns the reconstructed prototypes. The weighted-training
+	// options and the training listeners set on this object are passed on to the inner algorithm,
+	// and so is the metric if one was set; otherwise the inner algorithm uses its own default.
+
+	// Creates the inner algorithm for the projected rows
+	public interface Factory
+	{
+		ClusteringAlgorithm create(Vector<float[]> trainData, Vector<float[]> testData, int dim);
+	}
+
+	private RandomProjection projection;
+	private Factory factory;
+	private ClusteringAlgorithm inner;
+
+	// Threshold above which the corresponding html is prefetched
+	private double prefetchThreshold;
+
+	private Vector<float[]> trainData;
+	private Vector<float[]> testData;
+
+	// Reconstructed prototypes in the original space
+	private float[][] prototypes;
+
+	private List<TrainingListener> innerListeners = new ArrayList<TrainingListener>();
+
+	// True if setMetric() was called; otherwise the inner algorithm keeps its own default metric
+	private boolean metricSet = false;
+
+	// Results of test()
+	private double hitrate;
+	private double accuracy;
+
+	public ReducedClustering(RandomProjection projection, Factory factory, Vector<float[]> trainData, Vector<float[]> testData)
+	{
+		this.projection = projection;
+		this.factory = factory;
+		this.trainData = trainData;
+		this.testData = testData;
+		prefetchThreshold = 0.5;
+		prototypes = new float[0][];
+	}
+
+	public boolean train()
+	{
+		long start = System.nanoTime();
+		Vector<float[]> reduced = projection.project(trainData);
+		if (verbose)
+			System.out.format("Projected %d rows from %d to %d dimensions in %.1f ms\n", reduced.size(),
+				projection.dim(), projection.width(), (System.nanoTime() - start) / 1e6);
+
+		inner = factory.create(reduced, reduced, projection.width());
+		inner.setVerbose(verbose);
+		if (metricSet)
+			inner.setMetric(metric);
+		inner.setCollapseDuplicates(collapseDuplicates);
+		inner.setCoreset(coresetSize, coresetSeed);
+		for (TrainingListener listener : innerListeners)
+			inner.addTrainingListener(listener);
+
+		boolean result = inner.train();
+		reconstruct();
+		return result;
+	}
+
+	/// Sets every prototype to the mean of the original rows of its members.
+	private void reconstruct()
+	{
+		int count = inner.clusterCount();
+		float[][] means = new float[count][];
+
+		IntStream.range(0, count).parallel().forEach(c -> {
+			float[] mean = new float[projection.dim()];
+			Set<Integer> members = inner.getMembers(c);
+			for (Integer i : members)
+				Kernels.INSTANCE.accumulate(mean, trainData.get(i));
+			if (!members.isEmpty())
+				Kernels.INSTANCE.divide(mean, members.size());
+			means[c] = mean;
+		});
+		prototypes = means;
+	}
+
+	/// Assigns projected rows through the reduced prototypes of the inner algorithm.
+	protected void predict(float[][] data, int m, int[] out)
+	{
+		float[][] reduced = new float[m][];
+		IntStream.range(0, m).parallel().forEach(i -> reduced[i] = projection.project(data[i]));
+		inner.predict(reduced, out);
+	}
+
+	public int predict(float[] v)
+	{
+		return inner.predict(projection.project(v));
+	}
+
+	public boolean test()
+	{
+		// The clients are in the same order in the test data; client i is scored with the
+		// reconstructed prototype of the cluster it is a member of
+		int[] assigned = new int[testData.size()];
+		Arrays.fill(assigned, -1);
+		for (int c = 0; c < clusterCount(); c++)
+			for (Integer i : getMembers(c))
+				if (i < assigned.length)
+					assigned[i] = c;
+
+		double[] score = score(assigned, testData, prefetchThreshold);
+		hitrate = score[0];
+		accuracy = score[1];
+		if (verbose)
+			showTest();
+		return true;
+	}
+
+	public void showTest()
+	{
+		System.out.println("Projected dimensions: " + projection.width() + " of " + projection.dim());
+		System.out.println("Prefetch threshold=" + prefetchThreshold);
+		System.out.println("Hitrate: " + hitrate);
+		System.out.println("Accuracy: " + accuracy);
+		System.out.println("Hitrate+Accuracy=" + (hitrate + accuracy));
+	}
+
+	public void showMembers()
+	{
+		for (int c = 0; c < clusterCount(); c++)
+			System.out.println("\nMembers cluster[" + c + "] :" + getMembers(c));
+	}
+
+	public void showPrototypes()
+	{
+		for (int c = 0; c < clusterCount(); c++)
+			System.out.println("\nPrototype cluster[" + c + "] :" + Arrays.toString(prototypes[c]));
+	}
+
+	public void setMetric(DistanceMetric metric)
+	{
+		super.setMetric(metric);
+		metricSet = true;
+		if (inner != null)
+			inner.setMetric(metric);
+	}
+
+	/// Returns the metric of the inner algorithm once it exists, which may be its own default.
+	public DistanceMetric getMetric()
+	{
+		return (inner != null ? inner.getMetric() : metric);
+	}
+
+	public void setPrefetchThreshold(double prefetchThreshold)
+	{
+		this.prefetchThreshold = prefetchThreshold;
+	}
+
+	public void addTrainingListener(TrainingListener listener)
+	{
+		innerListeners.add(listener);
+		if (inner != null)
+			inner.addTrainingListener(listener);
+	}
+
+	public void removeTrainingListener(TrainingListener listener)
+	{
+		innerListeners.remove(listener);
+		if (inner != null)
+			inner.removeTrainingListener(listener);
+	}
+
+	/// Returns the algorithm that clusters the projected rows, null before train().
+	public ClusteringAlgorithm getInner()
+	{
+		return inner;
+	}
+
+	public int clusterCount()
+	{
+		return prototypes.length;
+	}
+
+	public float[] getPrototype(int c)
+	{
+		return prototypes[c];
+	}
+
+	public int clusterSize(int c)
+	{
+		return inner.clusterSize(c);
+	}
+
+	public Set<Integer> getMembers(int c)
+	{
+		return inner.getMembers(c);
+	}
+
+	public int[] assignments()
+	{
+		return inner.assignments();
+	}
+
+	public int[] clusterSizes()
+	{
+		return inner.clusterSizes();
+	}
+}
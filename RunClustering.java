@@ -44,6 +44,7 @@ public class RunClustering
 			if (startUp) {
 				// Ask for algoritm and its appropriate parameters. Algorithm gets copies of the data vectors (fail-proof)
 				initializeAlgorithm();
+				applyCheckpointOptions();
 
 				// Training
 				System.out.print("Perform the actual training! (hit enter)"); 
@@ -59,6 +60,7 @@ public class RunClustering
 				waitForAuthorisation();                     
 				System.out.println("Testing...");
 				ca.test();
+				ca.showTest();
 				System.out.println("Testing finished.");
 			}
 			
@@ -67,6 +69,26 @@ public class RunClustering
 		}
 	}
 	
+	// Long runs can be checkpointed and resumed (KMeans and Kohonen), selected with system properties:
+	//   -Dclustering.checkpoint=file        write a checkpoint to file while training
+	//   -Dclustering.checkpointEvery=10     every this many rounds or epochs
+	//   -Dclustering.resume=file            continue training from a checkpoint, which must exist
+	public static void applyCheckpointOptions()
+	{
+		String checkpoint = System.getProperty("clustering.checkpoint");
+		if (checkpoint != null)
+			ca.setCheckpoint(checkpoint, Integer.getInteger("clustering.checkpointEvery", 10));
+
+		String resume = System.getProperty("clustering.resume");
+		if (resume != null) {
+			if (!new File(resume).isFile()) {
+				System.out.println("error occured while resuming: checkpoint " + resume + " does not exist");
+				System.exit(1);
+			}
+			ca.resumeFrom(resume);
+		}
+	}
+
 	public static int chooseAlgorithm()
 	{
 		int algID=4;
@@ -94,11 +116,11 @@ public class RunClustering
 	{
 		int resultID=0;
 		while (true) {
-			System.out.print("Show output printTest(1), vector members(2), vector prototypes(3), Quit(4) or set prefetchThreshold(5)? ");
+			System.out.print("Show output printTest(1), vector members(2), vector prototypes(3), Quit(4), set prefetchThreshold(5) or export to files(6)? ");
 			String line="";
 			try {
 				resultID = (new Integer(in.readLine())).intValue();
-				if ((resultID > 0)&&(resultID < 6)) 
+				if ((resultID > 0)&&(resultID < 7)) 
 					break;
 			}
 			catch(Exception e){
@@ -220,8 +242,24 @@ public class RunClustering
 					ca.setPrefetchThreshold(prefetchThreshold);
 					System.out.println("Testing algorithm with prefetchThreshold = "+prefetchThreshold+"...");               
 					ca.test();
+					ca.showTest();
 				}
 				catch (Exception e){}
+				break;
+			case 6:
+				try {
+					System.out.print("Export prefix = ");
+					String prefix = in.readLine().trim();
+					long start = System.nanoTime();
+					ClusterExport.members(ca, clientsVector, prefix + "members.csv");
+					ClusterExport.members(ca, clientsVector, prefix + "members.bin");
+					ClusterExport.prototypes(ca, requestsVector, prefix + "prototypes.csv");
+					ClusterExport.prototypes(ca, requestsVector, prefix + "prototypes.bin");
+					System.out.format("Exported memberships and prototypes to %s* in %.1f ms\n", prefix, (System.nanoTime() - start) / 1e6);
+				}
+				catch (Exception e){
+					System.out.println("error occured while exporting:"+e);
+				}
 		}  
 		return ret_val;
 	}
@@ -253,27 +291,17 @@ public class RunClustering
 	private static void readTrainData(String trainFileName)
 	{
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(trainFileName));
-			String line = "";
-			while ((line = br.readLine()) != null) {
-				StringTokenizer st = new StringTokenizer(line, " \t\n\r\f,");
-				
+			for (float[] data : readMatrix(trainFileName)) {
 				if (dim == 0)
-					dim = st.countTokens();
+					dim = data.length;
 
-				else if (dim != st.countTokens()) {
+				else if (dim != data.length) {
 					System.out.println("traindata vectors have different size");
 					System.exit(1);
 				}
 
-				float[] data = new float[dim];
-				for (int i = 0; i < dim; i++)
-					data[i] = Float.parseFloat(st.nextToken());
-				
 				trainData.addElement(data);
 			}
-			
-			br.close();
 		}
 		catch(Exception e){
 			System.out.println("error occured while reading traindata:"+e);
@@ -284,25 +312,17 @@ public class RunClustering
 	private static void readTestData(String testFileName)
 	{
 		try{
-			BufferedReader br = new BufferedReader(new FileReader(testFileName));
-			String line = "";
-			while ((line = br.readLine()) != null) {
-				StringTokenizer st = new StringTokenizer(line, " \t\n\r\f,");
+			for (float[] data : readMatrix(testFileName)) {
 				if (dim == 0)
-					dim = st.countTokens();
+					dim = data.length;
 
-				else if (dim != st.countTokens()) {
+				else if (dim != data.length) {
 					System.out.println("test vectors have different size");
 					System.exit(1);
 				}
 
-				float[] data = new float[dim];
-				for (int i = 0; i < dim; i++)
-					data[i] = Float.parseFloat(st.nextToken());
-
 				testData.addElement(data);
 			}
-			br.close();
 		}
 		catch (Exception e) {
 			System.out.println("error occured while reading testdata:"+e);
@@ -310,6 +330,56 @@ public class RunClustering
 		}
 	}
 
+	// Reads a data file (one vector per line) without touching the static state of RunClustering,
+	// so that other drivers can load the data as well. Files ending in .sparse are in the sparse
+	// format written by LogIngest.
+	public static Vector<float[]> readMatrix(String fileName) throws IOException
+	{
+		if (fileName.endsWith(".sparse"))
+			return readSparseMatrix(fileName);
+
+		Vector<float[]> matrix = new Vector<float[]>();
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		try {
+			String line = "";
+			while ((line = br.readLine()) != null)
+				matrix.addElement(ClusteringAlgorithm.parseVector(line));
+		}
+		finally {
+			br.close();
+		}
+		return matrix;
+	}
+
+	// Reads a sparse data file: a header line "sparse rows dim", then for every row the column
+	// indices of its ones, separated by spaces.
+	public static Vector<float[]> readSparseMatrix(String fileName) throws IOException
+	{
+		Vector<float[]> matrix = new Vector<float[]>();
+		BufferedReader br = new BufferedReader(new FileReader(fileName), 1 << 16);
+		try {
+			StringTokenizer header = new StringTokenizer(String.valueOf(br.readLine()));
+			if (header.countTokens() != 3 || !header.nextToken().equals("sparse"))
+				throw new IOException(fileName + " is not a sparse data file");
+			int rows = Integer.parseInt(header.nextToken()), dim = Integer.parseInt(header.nextToken());
+
+			String line = "";
+			while (matrix.size() < rows && (line = br.readLine()) != null) {
+				float[] data = new float[dim];
+				StringTokenizer st = new StringTokenizer(line);
+				while (st.hasMoreTokens())
+					data[Integer.parseInt(st.nextToken())] = 1;
+				matrix.addElement(data);
+			}
+			if (matrix.size() < rows)
+				throw new EOFException(fileName + " ends after " + matrix.size() + " of " + rows + " rows");
+		}
+		finally {
+			br.close();
+		}
+		return matrix;
+	}
+
 	private static void readRequests(String requestsFileName)
 	{
 		try{
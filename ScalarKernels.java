@@ -0,0 +1,33 @@
+public class ScalarKernels implements Kernels
+{
+	// Plain loops, used when the Vector API is not available. They are also the reference the
+	// SIMD kernels are checked against.
+
+	public double squaredDistance(float[] a, float[] b)
+	{
+		double d = 0;
+		for (int i = 0; i < a.length; i++) {
+			double t = b[i] - a[i];
+			d += t * t;
+		}
+		return d;
+	}
+
+	public void moveTowards(float[] p, float[] x, float rate)
+	{
+		for (int i = 0; i < p.length; i++)
+			p[i] += rate * (x[i] - p[i]);
+	}
+
+	public void accumulate(float[] sum, float[] x)
+	{
+		for (int i = 0; i < sum.length; i++)
+			sum[i] += x[i];
+	}
+
+	public void divide(float[] v, float d)
+	{
+		for (int i = 0; i < v.length; i++)
+			v[i] /= d;
+	}
+}
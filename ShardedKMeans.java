@@ -0,0 +1,596 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class ShardedKMeans extends ClusteringAlgorithm
+{
+	// K-means with the training data sharded over several worker JVMs on the same host.
+	//
+	// Usage: java ShardedKMeans k workers traindata [testdata] [seed] [--verify]
+	//
+	// The coordinator (this class) starts 'workers' JVMs that connect back over a local socket.
+	// Worker w reads only the rows r with r % workers == w. Every round the coordinator broadcasts
+	// the prototypes, the workers reassign their rows and return per-cluster partial sums, counts
+	// and the number of changed memberships, and the coordinator computes the new prototypes.
+	//
+	// With the same seed the result is the same as KMeans: the initial partition is drawn with the
+	// same random permutation, assignment uses KMeans.closestPrototype with the same metric, and
+	// every prototype element is (float) sum / count. The workers add their partial sums in double,
+	// so for integer-valued data (like the binary access vectors) every sum is exact as long as it
+	// stays below 2^24, as in the float sums of KMeans, and prototypes and memberships are bitwise
+	// identical; --verify checks this against a single-process run. For real-valued data the sums
+	// are more accurate than those of KMeans and do not depend on the number of workers, but the
+	// prototypes can differ from KMeans in the last bits, and so can a membership near a tie.
+	//
+	// The workers run with the JVM options of the coordinator (-Xmx, --add-modules, -D...) and get
+	// the metric when they start. Collapsed duplicates, coresets and checkpoints are not supported.
+	//
+	// A worker that exits, or does not answer within clustering.workerTimeout seconds (system
+	// property, default 600), fails the run: train() and test() stop all workers and throw an
+	// UncheckedIOException naming the lost workers, instead of waiting forever.
+
+	// Commands sent from the coordinator to the workers
+	private static final int SUMS = 0, ASSIGN = 1, MEMBERS = 2, TEST = 3, STOP = 4;
+
+	// Longest wait for a worker to connect or to answer, in milliseconds
+	private static final int TIMEOUT = Integer.getInteger("clustering.workerTimeout", 600) * 1000;
+
+	// Interval of the checks for exited workers while waiting for connections, in milliseconds
+	private static final int POLL = 1000;
+
+	private int k, dim, workers;
+	private long seed;
+	private double prefetchThreshold;
+	private String trainFileName, testFileName;
+
+	// Prototypes and, after train(), the cluster of every training row
+	private float[][] prototypes;
+	private int[] assignment;
+
+	// Connections to the workers, indexed by shard
+	private Socket[] sockets;
+	private DataInputStream[] ins;
+	private DataOutputStream[] outs;
+	private int[] shardRows;
+	private List<Process> processes = new ArrayList<Process>();
+
+	// Results of test()
+	private double hitrate;
+	private double accuracy;
+
+	public ShardedKMeans(int k, int workers, String trainFileName, String testFileName, long seed)
+	{
+		this.k = k;
+		this.workers = workers;
+		this.trainFileName = trainFileName;
+		this.testFileName = testFileName;
+		this.seed = seed;
+		prefetchThreshold = 0.5;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length > 0 && args[0].equals("worker")) {
+			worker(Integer.parseInt(args[1]), args[2], args[3], Integer.parseInt(args[4]), Integer.parseInt(args[5]), Metrics.forName(args[6]));
+			return;
+		}
+
+		List<String> list = new ArrayList<String>(Arrays.asList(args));
+		boolean verify = list.remove("--verify");
+		if (list.size() < 3) {
+			System.out.println("usage: java ShardedKMeans k workers traindata [testdata] [seed] [--verify]");
+			System.exit(1);
+		}
+
+		String testFileName = (list.size() > 3 ? list.get(3) : null);
+		long seed = (list.size() > 4 ? Long.parseLong(list.get(4)) : 1);
+		ShardedKMeans ca = new ShardedKMeans(Integer.parseInt(list.get(0)), Integer.parseInt(list.get(1)), list.get(2), testFileName, seed);
+		ca.setVerbose(true);
+
+		boolean same = true;
+		try {
+			ca.train();
+			if (testFileName != null)
+				ca.test();
+
+			if (verify)
+				same = ca.verify();
+		}
+		finally {
+			ca.close();
+		}
+		System.exit(same ? 0 : 1);
+	}
+
+	/******************************* COORDINATOR ***********************************/
+
+	public boolean train()
+	{
+		try {
+			if (sockets == null)
+				connect();
+
+			/// Step 1: the same random partition as KMeans.train() draws for this seed.
+			int n = 0;
+			for (int rows : shardRows)
+				n += rows;
+
+			KMeans reference = new KMeans(k, new Vector<float[]>(), new Vector<float[]>(), dim, seed);
+			int[] indices = reference.randomPermutation(n);
+			assignment = new int[n];
+			for (int i = 0; i < n; i++)
+				assignment[indices[i]] = i % k;
+
+			for (int w = 0; w < workers; w++) {
+				outs[w].writeInt(SUMS);
+				for (int r = w; r < n; r += workers)
+					outs[w].writeInt(assignment[r]);
+				outs[w].flush();
+			}
+			collectSums();
+
+			/// Steps 2 and 3 until the memberships are stable.
+			int round = 0;
+			long delta;
+			do {
+				beginIteration();
+				for (int w = 0; w < workers; w++) {
+					outs[w].writeInt(ASSIGN);
+					writePrototypes(outs[w]);
+					outs[w].flush();
+				}
+				delta = collectSums();
+				endIteration(round, (long)n * k, delta, Double.NaN);
+
+				if (verbose)
+					System.out.format("Round %d, changed = %d\n", round, delta);
+				round++;
+			} while (delta > 0);
+
+			/// Fetch the final memberships.
+			for (int w = 0; w < workers; w++) {
+				outs[w].writeInt(MEMBERS);
+				outs[w].flush();
+			}
+			for (int w = 0; w < workers; w++)
+				for (int r = w; r < n; r += workers)
+					assignment[r] = ins[w].readInt();
+
+			if (verbose)
+				System.out.format("Stopped on round %d\n", round);
+			return true;
+		}
+		catch (IOException e) {
+			throw fail(e);
+		}
+	}
+
+	/// Reads the partial sums, counts and changes of all workers and sets the new prototypes.
+	/// Returns the total number of changed memberships.
+	private long collectSums() throws IOException
+	{
+		double[][] sums = new double[k][dim];
+		long[] counts = new long[k];
+		long changes = 0;
+
+		for (int w = 0; w < workers; w++) {
+			changes += ins[w].readLong();
+			for (int c = 0; c < k; c++) {
+				counts[c] += ins[w].readLong();
+				for (int j = 0; j < dim; j++)
+					sums[c][j] += ins[w].readDouble();
+			}
+		}
+
+		/// Same arithmetic as KMeans.Cluster.updatePrototype() once the sum is a float, an empty
+		/// cluster gets NaN there as well.
+		float[][] newPrototypes = new float[k][dim];
+		for (int c = 0; c < k; c++) {
+			for (int j = 0; j < dim; j++)
+				newPrototypes[c][j] = (float)sums[c][j];
+			Kernels.INSTANCE.divide(newPrototypes[c], counts[c]);
+		}
+		prototypes = newPrototypes;
+		return changes;
+	}
+
+	private void writePrototypes(DataOutputStream out) throws IOException
+	{
+		for (int c = 0; c < k; c++)
+			for (int j = 0; j < dim; j++)
+				out.writeFloat(prototypes[c][j]);
+	}
+
+	/// Starts the worker JVMs and waits until all of them have connected and loaded their shard.
+	private void connect() throws IOException
+	{
+		sockets = new Socket[workers];
+		ins = new DataInputStream[workers];
+		outs = new DataOutputStream[workers];
+		shardRows = new int[workers];
+
+		try (ServerSocket server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			for (int w = 0; w < workers; w++) {
+				List<String> command = new ArrayList<String>();
+				command.add(java);
+				command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+				command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "ShardedKMeans", "worker",
+					Integer.toString(server.getLocalPort()), trainFileName, (testFileName == null ? "-" : testFileName),
+					Integer.toString(w), Integer.toString(workers), Metrics.name(getMetric())));
+				processes.add(new ProcessBuilder(command).inheritIO().start());
+			}
+
+			// Accept in short waits, so that a worker that exits before connecting is noticed
+			server.setSoTimeout(POLL);
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			for (int i = 0; i < workers; i++) {
+				Socket socket = null;
+				while (socket == null) {
+					try {
+						socket = server.accept();
+					}
+					catch (SocketTimeoutException e) {
+						for (int w = 0; w < workers; w++)
+							if (!processes.get(w).isAlive())
+								throw new IOException("worker " + w + " exited with status " + processes.get(w).exitValue() + " before connecting");
+						if (System.currentTimeMillis() > deadline)
+							throw new IOException("only " + i + " of " + workers + " workers connected within " + TIMEOUT / 1000 + " s");
+					}
+				}
+				socket.setSoTimeout(TIMEOUT);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+				int w = in.readInt();
+				sockets[w] = socket;
+				ins[w] = in;
+				outs[w] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+				shardRows[w] = in.readInt();
+				int workerDim = in.readInt();
+
+				if (dim == 0)
+					dim = workerDim;
+				else if (workerDim != 0 && dim != workerDim)
+					throw new IOException("shard " + w + " has vectors of size " + workerDim + ", expected " + dim);
+			}
+
+			for (int w = 0; w < workers; w++) {
+				outs[w].writeInt(k);
+				outs[w].writeInt(dim);
+				outs[w].flush();
+			}
+		}
+	}
+
+	/// Stops all workers after a failure and returns the exception to throw, naming the workers
+	/// that exited.
+	private UncheckedIOException fail(IOException e)
+	{
+		String lost = "";
+		for (int w = 0; w < processes.size(); w++) {
+			Process p = processes.get(w);
+			try {
+				// A worker that was killed closes its socket just before it is reaped
+				if (p.waitFor(POLL / 5, TimeUnit.MILLISECONDS))
+					lost += (lost.isEmpty() ? "" : ", ") + w + " (status " + p.exitValue() + ")";
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (sockets != null) {
+			for (Socket socket : sockets) {
+				try {
+					if (socket != null)
+						socket.close();
+				}
+				catch (IOException ignored) {
+				}
+			}
+			sockets = null;
+		}
+		for (Process p : processes)
+			p.destroyForcibly();
+		processes.clear();
+
+		String message = (e instanceof SocketTimeoutException ? "a worker did not answer within " + TIMEOUT / 1000 + " s"
+			: e instanceof EOFException ? "a worker closed its connection" : e.getMessage());
+		return new UncheckedIOException("sharded k-means failed" + (lost.isEmpty() ? "" : ", lost worker " + lost) + ": " + message, e);
+	}
+
+	/// Stops the workers.
+	public void close() throws IOException, InterruptedException
+	{
+		if (sockets != null) {
+			for (int w = 0; w < workers; w++) {
+				outs[w].writeInt(STOP);
+				outs[w].flush();
+				sockets[w].close();
+			}
+			sockets = null;
+		}
+		for (Process p : processes)
+			p.waitFor();
+		processes.clear();
+	}
+
+	/// Trains KMeans in this JVM with the same seed and compares prototypes and memberships bitwise.
+	public boolean verify() throws IOException
+	{
+		Vector<float[]> trainData = RunClustering.readMatrix(trainFileName);
+		KMeans single = new KMeans(k, trainData, trainData, dim, seed);
+		single.setMetric(getMetric());
+		single.train();
+
+		int[] singleAssignment = new int[trainData.size()];
+		for (int c = 0; c < k; c++)
+			for (Integer i : single.getMembers(c))
+				singleAssignment[i] = c;
+
+		boolean same = Arrays.equals(singleAssignment, assignment);
+		for (int c = 0; c < k; c++)
+			same &= Arrays.equals(single.getPrototype(c), prototypes[c]);
+
+		System.out.println(same ? "Identical to single-process KMeans" : "DIFFERENT from single-process KMeans");
+		return same;
+	}
+
+	/******************************* WORKER ****************************************/
+
+	private static void worker(int port, String trainFileName, String testFileName, int shard, int shards, DistanceMetric metric)
+		throws IOException
+	{
+		List<float[]> rows = readShard(trainFileName, shard, shards);
+		int dim = (rows.isEmpty() ? 0 : rows.get(0).length);
+
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			out.writeInt(shard);
+			out.writeInt(rows.size());
+			out.writeInt(dim);
+			out.flush();
+
+			int k = in.readInt();
+			dim = in.readInt();
+			int[] assignment = new int[rows.size()];
+			KMeans km = new KMeans(k, new Vector<float[]>(), new Vector<float[]>(), dim);
+			km.setMetric(metric);
+			KMeans.Cluster[] clusters = new KMeans.Cluster[k];
+			for (int c = 0; c < k; c++)
+				clusters[c] = new KMeans.Cluster(dim);
+			List<float[]> testRows = null;
+
+			while (true) {
+				int command = in.readInt();
+				if (command == STOP)
+					break;
+
+				switch (command) {
+					case SUMS:
+						for (int i = 0; i < assignment.length; i++)
+							assignment[i] = in.readInt();
+						writeSums(out, rows, assignment, k, dim, 0);
+						break;
+
+					case ASSIGN:
+						for (int c = 0; c < k; c++) {
+							for (int j = 0; j < dim; j++)
+								clusters[c].prototype[j] = in.readFloat();
+							clusters[c].refreshNorm(km.getMetric());
+						}
+
+						long changes = 0;
+						for (int i = 0; i < rows.size(); i++) {
+							KMeans.Cluster closest = km.closestPrototype(rows.get(i), clusters);
+							int c = 0;
+							while (clusters[c] != closest)
+								c++;
+							changes += (assignment[i] == c ? 0 : 1);
+							assignment[i] = c;
+						}
+						writeSums(out, rows, assignment, k, dim, changes);
+						break;
+
+					case MEMBERS:
+						for (int c : assignment)
+							out.writeInt(c);
+						break;
+
+					case TEST:
+						double threshold = in.readDouble();
+						if (testRows == null)
+							testRows = readShard(testFileName, shard, shards);
+						writeTest(out, testRows, assignment, clusters, threshold);
+						break;
+				}
+				out.flush();
+			}
+		}
+	}
+
+	/// Writes the number of changes, then for every cluster its member count and the sum of its members.
+	private static void writeSums(DataOutputStream out, List<float[]> rows, int[] assignment, int k, int dim, long changes) throws IOException
+	{
+		double[][] sums = new double[k][dim];
+		long[] counts = new long[k];
+
+		for (int i = 0; i < rows.size(); i++) {
+			double[] sum = sums[assignment[i]];
+			float[] v = rows.get(i);
+			for (int j = 0; j < dim; j++)
+				sum[j] += v[j];
+			counts[assignment[i]]++;
+		}
+
+		out.writeLong(changes);
+		for (int c = 0; c < k; c++) {
+			out.writeLong(counts[c]);
+			for (int j = 0; j < dim; j++)
+				out.writeDouble(sums[c][j]);
+		}
+	}
+
+	/// Writes the requests, prefetches and hits of the test rows of this shard.
+	private static void writeTest(DataOutputStream out, List<float[]> testRows, int[] assignment, KMeans.Cluster[] clusters, double threshold)
+		throws IOException
+	{
+		long requests = 0, prefetched = 0, hits = 0;
+
+		for (int i = 0; i < testRows.size() && i < assignment.length; i++) {
+			float[] v = testRows.get(i), p = clusters[assignment[i]].prototype;
+			for (int j = 0; j < v.length; j++) {
+				boolean requested = (v[j] != 0), wasPrefetched = (p[j] > threshold);
+				requests += (requested ? 1 : 0);
+				prefetched += (wasPrefetched ? 1 : 0);
+				hits += (requested && wasPrefetched ? 1 : 0);
+			}
+		}
+
+		out.writeLong(requests);
+		out.writeLong(prefetched);
+		out.writeLong(hits);
+	}
+
+	/// Reads the rows r of a data file with r % shards == shard.
+	private static List<float[]> readShard(String fileName, int shard, int shards) throws IOException
+	{
+		List<float[]> rows = new ArrayList<float[]>();
+		try (BufferedReader br = new BufferedReader(new FileReader(fileName), 1 << 16)) {
+			String line;
+			for (int r = 0; (line = br.readLine()) != null; r++)
+				if (r % shards == shard)
+					rows.add(parseVector(line));
+		}
+		return rows;
+	}
+
+	/****************************** TESTING METHODS *******************************/
+
+	/// Scores the test file shard by shard, with every client assigned to the cluster of its training row.
+	public boolean test()
+	{
+		if (testFileName == null || sockets == null)
+			throw new IllegalStateException("test() needs a test file and a trained model");
+
+		try {
+			for (int w = 0; w < workers; w++) {
+				outs[w].writeInt(TEST);
+				outs[w].writeDouble(prefetchThreshold);
+				outs[w].flush();
+			}
+
+			long requests = 0, prefetched = 0, hits = 0;
+			for (int w = 0; w < workers; w++) {
+				requests += ins[w].readLong();
+				prefetched += ins[w].readLong();
+				hits += ins[w].readLong();
+			}
+
+			hitrate = (double)hits / requests;
+			accuracy = (double)hits / prefetched;
+			if (verbose)
+				showTest();
+			return true;
+		}
+		catch (IOException e) {
+			throw fail(e);
+		}
+	}
+
+	public void showTest()
+	{
+		System.out.println("Prefetch threshold=" + prefetchThreshold);
+		System.out.println("Hitrate: " + hitrate);
+		System.out.println("Accuracy: " + accuracy);
+		System.out.println("Hitrate+Accuracy=" + (hitrate + accuracy));
+	}
+
+	public void showMembers()
+	{
+		for (int c = 0; c < k; c++)
+			System.out.println("\nMembers cluster[" + c + "] :" + getMembers(c));
+	}
+
+	public void showPrototypes()
+	{
+		for (int c = 0; c < k; c++)
+			System.out.println("\nPrototype cluster[" + c + "] :" + Arrays.toString(prototypes[c]));
+	}
+
+	/// The metric is passed to the workers when they start, in the first train().
+	public void setMetric(DistanceMetric metric)
+	{
+		if (sockets != null)
+			throw new IllegalStateException("the metric cannot be changed after the workers have started");
+		Metrics.name(metric);
+		super.setMetric(metric);
+	}
+
+	public void setCollapseDuplicates(boolean collapseDuplicates)
+	{
+		if (collapseDuplicates)
+			throw new UnsupportedOperationException("ShardedKMeans does not collapse duplicates");
+	}
+
+	public void setCoreset(int size, long seed)
+	{
+		if (size > 0)
+			throw new UnsupportedOperationException("ShardedKMeans does not train on a coreset");
+	}
+
+	public void setCheckpoint(String fileName, int every)
+	{
+		if (fileName != null)
+			throw new UnsupportedOperationException("ShardedKMeans does not write checkpoints");
+	}
+
+	public void resumeFrom(String fileName)
+	{
+		if (fileName != null)
+			throw new UnsupportedOperationException("ShardedKMeans does not resume from checkpoints");
+	}
+
+	public void setPrefetchThreshold(double prefetchThreshold)
+	{
+		this.prefetchThreshold = prefetchThreshold;
+	}
+
+	public int clusterCount()
+	{
+		return k;
+	}
+
+	public float[] getPrototype(int c)
+	{
+		return prototypes[c];
+	}
+
+	public int clusterSize(int c)
+	{
+		return getMembers(c).size();
+	}
+
+	/// Returns the training rows that are member of cluster c.
+	public Set<Integer> getMembers(int c)
+	{
+		Set<Integer> members = new TreeSet<Integer>();
+		for (int i = 0; i < assignment.length; i++)
+			if (assignment[i] == c)
+				members.add(i);
+		return members;
+	}
+
+	public int[] assignments()
+	{
+		return assignment.clone();
+	}
+
+	public int[] clusterSizes()
+	{
+		return clusterSizes(assignment, clusterCount());
+	}
+}
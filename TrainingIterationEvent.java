@@ -0,0 +1,31 @@
+import jdk.jfr.*;
+
+@Name("clustering.TrainingIteration")
+@Label("Training Iteration")
+@Category("Clustering")
+@Description("One iteration of a clustering algorithm: a KMeans round, a Kohonen epoch or a Leader-Follower pass")
+@StackTrace(false)
+public class TrainingIterationEvent extends Event
+{
+	// JFR counterpart of TrainingMetrics, committed by ClusteringAlgorithm when recording is enabled.
+
+	@Label("Algorithm")
+	String algorithm;
+
+	@Label("Iteration")
+	int iteration;
+
+	@Label("Distance Evaluations")
+	long distanceEvaluations;
+
+	@Label("Reassigned Points")
+	long reassigned;
+
+	@Label("Error")
+	@Description("Inertia for KMeans, mean quantization error for the other algorithms")
+	double error;
+
+	@Label("Bytes Allocated")
+	@DataAmount
+	long bytesAllocated;
+}
@@ -0,0 +1,6 @@
+public interface TrainingListener
+{
+	// Called by an algorithm at the end of every training iteration (a KMeans round, a Kohonen
+	// epoch or a Leader-Follower pass), on the thread that trains.
+	void iteration(TrainingMetrics metrics);
+}
@@ -0,0 +1,46 @@
+public class TrainingMetrics
+{
+	// Measurements of one training iteration, as passed to a TrainingListener.
+
+	// Simple name of the algorithm class, e.g. "KMeans"
+	public final String algorithm;
+
+	// Number of the iteration, starting at 0
+	public final int iteration;
+
+	// Wall clock time of the iteration
+	public final long wallNanos;
+
+	// Number of distances between a vector and a prototype that were computed
+	public final long distanceEvaluations;
+
+	// Number of points whose cluster differs from the previous iteration
+	public final long reassigned;
+
+	// Inertia (KMeans: sum of the distances to the assigned prototypes) or quantization error
+	// (Kohonen, Leader-Follower: mean distance to the closest prototype), both under the selected
+	// metric. With the default squared Euclidean metric KMeans reports the usual inertia.
+	public final double error;
+
+	// Bytes allocated by all threads of the JVM during the iteration, including the ForkJoin workers
+	// of the parallel implementations and any other work running at the same time; -1 if the JVM
+	// cannot tell
+	public final long bytesAllocated;
+
+	public TrainingMetrics(String algorithm, int iteration, long wallNanos, long distanceEvaluations, long reassigned, double error, long bytesAllocated)
+	{
+		this.algorithm = algorithm;
+		this.iteration = iteration;
+		this.wallNanos = wallNanos;
+		this.distanceEvaluations = distanceEvaluations;
+		this.reassigned = reassigned;
+		this.error = error;
+		this.bytesAllocated = bytesAllocated;
+	}
+
+	public String toString()
+	{
+		return String.format("%s iteration %d: %.3f ms, %d distances, %d reassigned, error %.6f, %d bytes allocated",
+			algorithm, iteration, wallNanos / 1e6, distanceEvaluations, reassigned, error, bytesAllocated);
+	}
+}
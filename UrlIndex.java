@@ -0,0 +1,306 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class UrlIndex
+{
+	// Reverse index from URLs to clusters, for pushing a page that was published or invalidated to
+	// the client segments that would prefetch it. A cluster prefetches URL j when its prototype
+	// value p[j] exceeds the prefetch threshold, as in score(); the index keeps, for every URL, all
+	// clusters sorted by decreasing prototype value, so the clusters above any threshold are a
+	// prefix that is found by binary search. Changing the threshold therefore costs nothing, and
+	// a query costs O(log k) plus the size of the answer.
+	//
+	// When the prototypes change (retraining, warm starts, a streaming algorithm), update(c) or
+	// update() reads them again and moves only the entries whose value changed to their new place.
+	// The index does not follow the algorithm by itself; call update() after training.
+	//
+	// A NaN prototype value (KMeans gives an empty cluster a NaN prototype) is stored as -infinity,
+	// so it sorts last and never exceeds a threshold. Building and updating use the same order.
+	//
+	// Memory: three arrays of (number of URLs) * (number of clusters) entries.
+	//
+	// Usage: java UrlIndex [n] [dim] [k] [seed]    checks the index against a brute-force scan after
+	//                                               random updates, exits with status 1 on a mismatch
+
+	private ClusteringAlgorithm ca;
+	private int k, dim;
+
+	// For URL j, entries j * k .. j * k + k - 1: the clusters by decreasing value, and their values
+	private int[] order;
+	private float[] values;
+
+	// Position of cluster c in the entries of URL j, at index j * k + c
+	private int[] rank;
+
+	// Member clients of every cluster
+	private int[][] members;
+
+	private double threshold;
+
+	public UrlIndex(ClusteringAlgorithm ca, double threshold)
+	{
+		this.ca = ca;
+		this.threshold = threshold;
+		rebuild();
+	}
+
+	/// Builds the index from scratch, sorting the clusters of every URL in parallel.
+	private void rebuild()
+	{
+		k = ca.clusterCount();
+		dim = (k == 0 ? 0 : ca.getPrototype(0).length);
+		order = new int[dim * k];
+		values = new float[dim * k];
+		rank = new int[dim * k];
+		members = new int[k][];
+
+		float[][] prototypes = new float[k][];
+		for (int c = 0; c < k; c++) {
+			prototypes[c] = ca.getPrototype(c);
+			members[c] = memberArray(c);
+		}
+
+		IntStream.range(0, dim).parallel().forEach(j -> {
+			// Sort by (value descending, cluster ascending) as longs: the order-preserving bits of
+			// -value in the high half, the cluster in the low half
+			long[] keys = new long[k];
+			for (int c = 0; c < k; c++)
+				keys[c] = ((long)sortable(-value(prototypes[c][j])) << 32) | c;
+			Arrays.sort(keys);
+
+			for (int r = 0; r < k; r++) {
+				int c = (int)keys[r];
+				order[j * k + r] = c;
+				values[j * k + r] = value(prototypes[c][j]);
+				rank[j * k + c] = r;
+			}
+		});
+	}
+
+	/// Returns the value stored for prototype value v: v, or -infinity for NaN.
+	private static float value(float v)
+	{
+		return (Float.isNaN(v) ? Float.NEGATIVE_INFINITY : v);
+	}
+
+	/// Maps a float to an int with the same order as Float.compare().
+	private static int sortable(float v)
+	{
+		int bits = Float.floatToIntBits(v);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+
+	private int[] memberArray(int c)
+	{
+		Set<Integer> set = ca.getMembers(c);
+		int[] array = new int[set.size()];
+		int i = 0;
+		for (Integer client : set)
+			array[i++] = client;
+		Arrays.sort(array);
+		return array;
+	}
+
+	/******************************* UPDATES *********************************/
+
+	public void setThreshold(double threshold)
+	{
+		this.threshold = threshold;
+	}
+
+	public double getThreshold()
+	{
+		return threshold;
+	}
+
+	/// Reads the prototypes and members of all clusters again. Rebuilds the index if the number
+	/// of clusters or URLs changed, otherwise only moves the changed entries.
+	public void update()
+	{
+		int count = ca.clusterCount();
+		if (count != k || (count > 0 && ca.getPrototype(0).length != dim)) {
+			rebuild();
+			return;
+		}
+		for (int c = 0; c < k; c++)
+			update(c);
+	}
+
+	/// Reads the prototype and members of cluster c again; costs O(number of URLs) plus the
+	/// distance every changed entry moves.
+	public void update(int c)
+	{
+		float[] p = ca.getPrototype(c);
+		members[c] = memberArray(c);
+
+		for (int j = 0; j < dim; j++) {
+			int base = j * k;
+			int r = rank[base + c];
+			float v = value(p[j]);
+			if (Float.compare(values[base + r], v) == 0)
+				continue;
+
+			// Shift the entries between the old and the new place by one, like insertion sort
+			while (r > 0 && before(v, c, values[base + r - 1], order[base + r - 1])) {
+				move(base, r - 1, r);
+				r--;
+			}
+			while (r < k - 1 && before(values[base + r + 1], order[base + r + 1], v, c)) {
+				move(base, r + 1, r);
+				r++;
+			}
+			order[base + r] = c;
+			values[base + r] = v;
+			rank[base + c] = r;
+		}
+	}
+
+	/// True if (v, c) sorts before (w, d): larger values first, then smaller clusters. This is the
+	/// order of the keys in rebuild(); v and w are never NaN.
+	private static boolean before(float v, int c, float w, int d)
+	{
+		int cmp = Float.compare(w, v);
+		return cmp < 0 || (cmp == 0 && c < d);
+	}
+
+	/// Moves the entry at position 'from' to position 'to' of the URL starting at base.
+	private void move(int base, int from, int to)
+	{
+		int c = order[base + from];
+		order[base + to] = c;
+		values[base + to] = values[base + from];
+		rank[base + c] = to;
+	}
+
+	/******************************* QUERIES *********************************/
+
+	/// Returns the number of clusters that prefetch URL j.
+	public int clusterCount(int j)
+	{
+		// The first position whose value does not exceed the threshold
+		int base = j * k, lo = 0, hi = k;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[base + mid] > threshold)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/// Returns the clusters that prefetch URL j, by decreasing prototype value.
+	public int[] clusters(int j)
+	{
+		return Arrays.copyOfRange(order, j * k, j * k + clusterCount(j));
+	}
+
+	/// Returns the clients in the clusters that prefetch URL j.
+	public int[] clients(int j)
+	{
+		int count = clusterCount(j), size = 0;
+		for (int r = 0; r < count; r++)
+			size += members[order[j * k + r]].length;
+
+		int[] clients = new int[size];
+		int i = 0;
+		for (int r = 0; r < count; r++) {
+			int[] m = members[order[j * k + r]];
+			System.arraycopy(m, 0, clients, i, m.length);
+			i += m.length;
+		}
+		return clients;
+	}
+
+	/// Returns the member clients of cluster c, sorted.
+	public int[] members(int c)
+	{
+		return members[c].clone();
+	}
+
+	/// Returns the prototype value of cluster c for URL j, -infinity if it is NaN.
+	public float value(int j, int c)
+	{
+		return values[j * k + rank[j * k + c]];
+	}
+
+	public int dim()
+	{
+		return dim;
+	}
+
+	/// Compares clusters(j) with a scan of the prototypes for every URL at several thresholds;
+	/// returns the number of mismatches.
+	private int check(ClusteringAlgorithm ca)
+	{
+		int mismatches = 0;
+		for (double t : new double[] { -1, 0, 0.25, 0.5, 0.9 }) {
+			setThreshold(t);
+			for (int j = 0; j < dim; j++) {
+				List<Integer> expected = new ArrayList<Integer>();
+				for (int c = 0; c < ca.clusterCount(); c++)
+					if (ca.getPrototype(c)[j] > t)
+						expected.add(c);
+
+				int[] found = clusters(j);
+				boolean sorted = true;
+				for (int r = 1; r < found.length; r++)
+					sorted &= (value(j, found[r - 1]) >= value(j, found[r]));
+				Arrays.sort(found);
+
+				boolean same = (found.length == expected.size());
+				for (int r = 0; same && r < found.length; r++)
+					same = (found[r] == expected.get(r));
+				if (!same || !sorted) {
+					if (mismatches++ < 10)
+						System.out.println("mismatch at URL " + j + ", threshold " + t + ": " + Arrays.toString(found) + ", expected " + expected);
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	/// Builds the index of a KMeans on random rows, then changes random prototype values (some to
+	/// NaN) in rounds, updates the index and compares it with a scan after every round.
+	public static void main(String[] args)
+	{
+		int n = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+		int dim = (args.length > 1 ? Integer.parseInt(args[1]) : 100);
+		int k = (args.length > 2 ? Integer.parseInt(args[2]) : 32);
+		long seed = (args.length > 3 ? Long.parseLong(args[3]) : 1);
+
+		Vector<float[]> data = GenerateData.uniform(n, dim, 0.2, seed);
+		KMeans km = new KMeans(k, data, data, dim, seed);
+		km.train();
+
+		UrlIndex index = new UrlIndex(km, 0.5);
+		int mismatches = index.check(km);
+
+		// KMeans returns its prototype arrays, so they can be changed in place
+		Random random = new Random(seed);
+		for (int round = 0; round < 10; round++) {
+			for (int c = 0; c < k; c++) {
+				float[] p = km.getPrototype(c);
+				for (int j = 0; j < dim; j++) {
+					int change = random.nextInt(20);
+					if (change == 0)
+						p[j] = Float.NaN;
+					else if (change == 1)
+						p[j] = random.nextFloat();
+					else if (change == 2)
+						p[j] = p[random.nextInt(dim)];
+				}
+			}
+			if (round % 2 == 0)
+				index.update();
+			else
+				for (int c = 0; c < k; c++)
+					index.update(c);
+			mismatches += index.check(km);
+		}
+
+		System.out.println(mismatches == 0 ? "UrlIndex matches the scan" : mismatches + " mismatches");
+		if (mismatches > 0)
+			System.exit(1);
+	}
+}
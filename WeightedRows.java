@@ -0,0 +1,146 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+public class WeightedRows
+{
+	// The distinct rows of a data set, each weighted by the number of clients that have exactly
+	// that row. Binary client vectors repeat a lot (many proxy clients request the same set of
+	// pages), so training on the weighted points instead of the raw rows cuts the effective n.
+	//
+	// Points are numbered in order of their first occurrence, so collapsing is deterministic.
+	// The mapping back to the clients is kept both ways: pointOf[i] is the point of client i, and
+	// clientsOf(p) lists the clients of point p in increasing order.
+	//
+	// A Coreset is also a WeightedRows, but one that is not complete: only the sampled clients
+	// have a point, and the weight of a point is the number of clients it stands for.
+
+	// The distinct rows; the arrays are shared with the input, not copied
+	public final Vector<float[]> points;
+
+	// weights[p] is the number of clients point p stands for; for collapsed rows, the number of
+	// clients whose row equals points[p]
+	public final int[] weights;
+
+	// pointOf[i] is the point of client i, -1 if client i is not represented
+	public final int[] pointOf;
+
+	// True if every client has a point
+	private boolean complete = true;
+
+	// Clients of point p are clients[clientStart[p]] .. clients[clientStart[p + 1] - 1]
+	private int[] clientStart, clients;
+
+	// A row as a hash key. The hash is computed once, in parallel, before the rows are inserted.
+	private static class Key
+	{
+		final float[] row;
+		final int hash;
+
+		Key(float[] row)
+		{
+			this.row = row;
+			this.hash = Arrays.hashCode(row);
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals(Object o)
+		{
+			return (o instanceof Key && ((Key)o).hash == hash && Arrays.equals(((Key)o).row, row));
+		}
+	}
+
+	WeightedRows(Vector<float[]> points, int[] weights, int[] pointOf)
+	{
+		this.points = points;
+		this.weights = weights;
+		this.pointOf = pointOf;
+
+		clientStart = new int[weights.length + 1];
+		for (int i = 0; i < pointOf.length; i++) {
+			if (pointOf[i] < 0)
+				complete = false;
+			else
+				clientStart[pointOf[i] + 1]++;
+		}
+		for (int p = 0; p < weights.length; p++)
+			clientStart[p + 1] += clientStart[p];
+
+		int[] next = Arrays.copyOf(clientStart, weights.length);
+		clients = new int[clientStart[weights.length]];
+		for (int i = 0; i < pointOf.length; i++)
+			if (pointOf[i] >= 0)
+				clients[next[pointOf[i]]++] = i;
+	}
+
+	/// Collapses identical rows into weighted points.
+	public static WeightedRows collapse(List<float[]> rows)
+	{
+		int n = rows.size();
+		Key[] keys = new Key[n];
+		IntStream.range(0, n).parallel().forEach(i -> keys[i] = new Key(rows.get(i)));
+
+		Map<Key, Integer> index = new HashMap<Key, Integer>(2 * n);
+		Vector<float[]> points = new Vector<float[]>();
+		int[] pointOf = new int[n];
+		int[] weights = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			Integer p = index.putIfAbsent(keys[i], points.size());
+			if (p == null) {
+				p = points.size();
+				points.add(keys[i].row);
+			}
+			pointOf[i] = p;
+			weights[p]++;
+		}
+
+		return new WeightedRows(points, Arrays.copyOf(weights, points.size()), pointOf);
+	}
+
+	/// Number of distinct rows.
+	public int size()
+	{
+		return points.size();
+	}
+
+	/// Number of clients (rows before collapsing).
+	public int clientCount()
+	{
+		return pointOf.length;
+	}
+
+	/// Returns true if every client has a point, so the memberships of the points can be expanded
+	/// to memberships of all clients. Otherwise the clients have to be assigned after training.
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/// Returns the clients of point p, in increasing order.
+	public int[] clientsOf(int p)
+	{
+		return Arrays.copyOfRange(clients, clientStart[p], clientStart[p + 1]);
+	}
+
+	/// Returns the clients of all the given points.
+	public Set<Integer> expand(Set<Integer> pointSet)
+	{
+		Set<Integer> result = new HashSet<Integer>();
+		for (Integer p : pointSet)
+			for (int i = clientStart[p]; i < clientStart[p + 1]; i++)
+				result.add(clients[i]);
+		return result;
+	}
+
+	/// Returns the rate of one step p += r * (x - p) that moves p as far towards x as 'times'
+	/// consecutive steps of the given rate, i.e. 1 - (1 - rate)^times. Used to apply the update of
+	/// a weighted point at once in the online algorithms.
+	public static double repeatedRate(double rate, int times)
+	{
+		return (times == 1 ? rate : 1 - Math.pow(1 - rate, times));
+	}
+}
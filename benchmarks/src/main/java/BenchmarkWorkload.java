@@ -0,0 +1,160 @@
+import java.io.*;
+import java.util.*;
+
+public class BenchmarkWorkload implements clustering.bench.Workload
+{
+	// The clustering side of the JMH benchmarks, see clustering.bench.Workload. The data is
+	// generated with GenerateData.uniform() and a fixed seed.
+
+	// Lloyd rounds of the KMeans that setupKMeans() prepares, instead of training to convergence
+	private static final int TRAIN_ROUNDS = 5;
+
+	// Kernels that change their argument restore it every RESET calls, so the values stay in range
+	private static final int RESET = 1024;
+
+	private Vector<float[]> data;
+	private float[] a, b, c;
+	private int calls;
+
+	private KMeans km;
+	private KMeans.Cluster[] clusters;
+	private int[] permutation;
+
+	private Kohonen ko;
+	private Kohonen.Cluster bmu;
+	private int map, row;
+
+	private File file;
+
+	public void setupDistance(int dim, double density)
+	{
+		data = GenerateData.uniform(2, dim, density, 1);
+		a = data.get(0);
+		b = data.get(1);
+		c = b.clone();
+		km = new KMeans(1, data, data, dim, 1);
+		ko = new Kohonen(1, 1, data, data, dim, 1);
+	}
+
+	public void setupKMeans(int n, int dim, int k, double density)
+	{
+		data = GenerateData.uniform(n, dim, density, 1);
+		km = new KMeans(k, data, data, dim, 1);
+
+		// A fixed number of rounds from k spread rows, so that setup does not depend on how long
+		// the random data takes to converge; retrain() leaves the members as indices into data
+		float[][] initial = new float[k][];
+		for (int i = 0; i < k; i++)
+			initial[i] = data.get((int)((long)i * n / k)).clone();
+		km.warmStart(new ClusteringAlgorithm.Model(initial, new int[k]));
+		km.retrain(data, TRAIN_ROUNDS);
+
+		clusters = new KMeans.Cluster[k];
+		for (int c = 0; c < k; c++) {
+			clusters[c] = new KMeans.Cluster(dim);
+			clusters[c].prototype = km.getPrototype(c).clone();
+		}
+		permutation = km.randomPermutation(n);
+	}
+
+	public void setupKohonen(int n, int dim, int map, double density)
+	{
+		data = GenerateData.uniform(n, dim, density, 1);
+		this.map = map;
+		ko = new Kohonen(map, 1, data, data, dim, 1);
+		ko.assignMembers(data);
+		bmu = ko.findBMU(data.get(0));
+	}
+
+	public void setupLoading(int n, int dim, double density) throws IOException
+	{
+		file = File.createTempFile("benchmark", ".dat");
+		file.deleteOnExit();
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+			for (float[] v : GenerateData.uniform(n, dim, density, 1)) {
+				for (int j = 0; j < v.length; j++)
+					out.print((j > 0 ? " " : "") + v[j]);
+				out.println();
+			}
+		}
+	}
+
+	public double kmeansEuclideanDistance()
+	{
+		return km.euclideanDistance(a, b);
+	}
+
+	public double kohonenEuclideanDistance()
+	{
+		return ko.euclideanDistance(a, b);
+	}
+
+	public double squaredDistance()
+	{
+		return Kernels.INSTANCE.squaredDistance(a, b);
+	}
+
+	public double moveTowards()
+	{
+		if (++calls % RESET == 0)
+			System.arraycopy(b, 0, c, 0, c.length);
+		Kernels.INSTANCE.moveTowards(c, a, 0.01f);
+		return c[0];
+	}
+
+	public double accumulate()
+	{
+		if (++calls % RESET == 0)
+			System.arraycopy(b, 0, c, 0, c.length);
+		Kernels.INSTANCE.accumulate(c, a);
+		return c[0];
+	}
+
+	public double closestPrototype()
+	{
+		double s = 0;
+		for (int i = 0; i < data.size(); i++)
+			s += km.closestPrototype(data.get(i), clusters).prototype[0];
+		return s;
+	}
+
+	public double performClusteringRound()
+	{
+		km.performClustering(permutation, data, clusters);
+		km.recomputeMeanPositions(data, clusters);
+		return clusters[0].currentMembers.size();
+	}
+
+	public double kmeansTest()
+	{
+		km.test();
+		return km.clusterSize(0);
+	}
+
+	public double findBMU()
+	{
+		double s = 0;
+		for (int i = 0; i < data.size(); i++)
+			s += ko.findBMU(data.get(i)).x;
+		return s;
+	}
+
+	public double adjustNeighbourhood()
+	{
+		// A different row every call, so the prototypes do not converge to one row
+		row = (row + 1) % data.size();
+		ko.adjustNeighbourhood(bmu, map / 2, 0.01, data.get(row));
+		return ko.getPrototype(0)[0];
+	}
+
+	public double kohonenTest()
+	{
+		ko.test();
+		return ko.clusterSize(0);
+	}
+
+	public double readMatrix() throws IOException
+	{
+		return RunClustering.readMatrix(file.getPath()).size();
+	}
+}
@@ -0,0 +1,60 @@
+package clustering.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark
+{
+	// The Euclidean distance of KMeans and Kohonen between two rows, and the Kernels operations
+
+	@Param({ "200", "2000" })
+	int dim;
+
+	@Param({ "0.05", "0.5" })
+	double density;
+
+	private Workload workload;
+
+	@Setup
+	public void setup()
+	{
+		workload = Workload.create();
+		workload.setupDistance(dim, density);
+	}
+
+	@Benchmark
+	public double kmeansEuclideanDistance()
+	{
+		return workload.kmeansEuclideanDistance();
+	}
+
+	@Benchmark
+	public double kohonenEuclideanDistance()
+	{
+		return workload.kohonenEuclideanDistance();
+	}
+
+	@Benchmark
+	public double squaredDistance()
+	{
+		return workload.squaredDistance();
+	}
+
+	@Benchmark
+	public double moveTowards()
+	{
+		return workload.moveTowards();
+	}
+
+	@Benchmark
+	public double accumulate()
+	{
+		return workload.accumulate();
+	}
+}
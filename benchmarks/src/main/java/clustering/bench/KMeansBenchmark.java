@@ -0,0 +1,49 @@
+package clustering.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KMeansBenchmark
+{
+	// closestPrototype over all rows and one performClustering round, on a KMeans after a few
+	// Lloyd rounds
+
+	@Param({ "1000", "10000" })
+	int n;
+
+	@Param({ "200", "2000" })
+	int dim;
+
+	@Param({ "8", "64" })
+	int k;
+
+	@Param({ "0.05", "0.5" })
+	double density;
+
+	private Workload workload;
+
+	@Setup
+	public void setup()
+	{
+		workload = Workload.create();
+		workload.setupKMeans(n, dim, k, density);
+	}
+
+	@Benchmark
+	public double closestPrototype()
+	{
+		return workload.closestPrototype();
+	}
+
+	@Benchmark
+	public double performClustering()
+	{
+		return workload.performClusteringRound();
+	}
+}
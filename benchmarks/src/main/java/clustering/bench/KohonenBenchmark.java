@@ -0,0 +1,48 @@
+package clustering.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KohonenBenchmark
+{
+	// findBMU over all rows and one adjustNeighbourhood with radius map / 2
+
+	@Param({ "1000", "10000" })
+	int n;
+
+	@Param({ "200", "2000" })
+	int dim;
+
+	@Param({ "4", "8" })
+	int map;
+
+	@Param({ "0.05", "0.5" })
+	double density;
+
+	private Workload workload;
+
+	@Setup
+	public void setup()
+	{
+		workload = Workload.create();
+		workload.setupKohonen(n, dim, map, density);
+	}
+
+	@Benchmark
+	public double findBMU()
+	{
+		return workload.findBMU();
+	}
+
+	@Benchmark
+	public double adjustNeighbourhood()
+	{
+		return workload.adjustNeighbourhood();
+	}
+}
@@ -0,0 +1,40 @@
+package clustering.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadingBenchmark
+{
+	// RunClustering.readMatrix() of a data file with n rows
+
+	@Param({ "1000", "10000" })
+	int n;
+
+	@Param({ "200", "2000" })
+	int dim;
+
+	@Param({ "0.05", "0.5" })
+	double density;
+
+	private Workload workload;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		workload = Workload.create();
+		workload.setupLoading(n, dim, density);
+	}
+
+	@Benchmark
+	public double readMatrix() throws IOException
+	{
+		return workload.readMatrix();
+	}
+}
@@ -0,0 +1,77 @@
+package clustering.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TestBenchmark
+{
+	// test() scoring of KMeans and Kohonen. Every benchmark takes only the state of its algorithm,
+	// so the k values of KMeans and the map sizes of Kohonen are not multiplied with each other.
+
+	@State(Scope.Thread)
+	public static class KMeansState
+	{
+		@Param({ "1000", "10000" })
+		int n;
+
+		@Param({ "200", "2000" })
+		int dim;
+
+		@Param({ "8", "64" })
+		int k;
+
+		@Param({ "0.05", "0.5" })
+		double density;
+
+		Workload workload;
+
+		@Setup
+		public void setup()
+		{
+			workload = Workload.create();
+			workload.setupKMeans(n, dim, k, density);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class KohonenState
+	{
+		@Param({ "1000", "10000" })
+		int n;
+
+		@Param({ "200", "2000" })
+		int dim;
+
+		@Param({ "4", "8" })
+		int map;
+
+		@Param({ "0.05", "0.5" })
+		double density;
+
+		Workload workload;
+
+		@Setup
+		public void setup()
+		{
+			workload = Workload.create();
+			workload.setupKohonen(n, dim, map, density);
+		}
+	}
+
+	@Benchmark
+	public double kmeansTest(KMeansState state)
+	{
+		return state.workload.kmeansTest();
+	}
+
+	@Benchmark
+	public double kohonenTest(KohonenState state)
+	{
+		return state.workload.kohonenTest();
+	}
+}
@@ -0,0 +1,69 @@
+package clustering.bench;
+
+import java.io.IOException;
+
+public interface Workload
+{
+	// The operations measured by the benchmarks. JMH only accepts benchmark classes in a named
+	// package, and a named package cannot refer to the clustering classes in the default package,
+	// so the benchmarks call them through this interface. It is implemented by BenchmarkWorkload in
+	// the default package; with a single implementation the calls are inlined like direct calls.
+	//
+	// Every operation returns a value that depends on its work, for the JMH Blackhole.
+
+	/// Two rows of dimension dim with about density * dim ones.
+	void setupDistance(int dim, double density);
+
+	/// n rows and a KMeans with k clusters after a fixed number of Lloyd rounds on them.
+	void setupKMeans(int n, int dim, int k, double density);
+
+	/// n rows and a map x map Kohonen map with members assigned.
+	void setupKohonen(int n, int dim, int map, double density);
+
+	/// A RunClustering data file with n rows.
+	void setupLoading(int n, int dim, double density) throws IOException;
+
+	double kmeansEuclideanDistance();
+
+	double kohonenEuclideanDistance();
+
+	/// Kernels.INSTANCE.squaredDistance(), SimdKernels when running with the simd profile.
+	double squaredDistance();
+
+	/// Kernels.INSTANCE.moveTowards() of the second row towards the first.
+	double moveTowards();
+
+	/// Kernels.INSTANCE.accumulate() of the first row into the second.
+	double accumulate();
+
+	/// KMeans.closestPrototype() for all n rows.
+	double closestPrototype();
+
+	/// One round of KMeans.performClustering() and recomputeMeanPositions().
+	double performClusteringRound();
+
+	/// KMeans.test().
+	double kmeansTest();
+
+	/// Kohonen.findBMU() for all n rows.
+	double findBMU();
+
+	/// One Kohonen.adjustNeighbourhood() with radius map / 2, towards the next row.
+	double adjustNeighbourhood();
+
+	/// Kohonen.test().
+	double kohonenTest();
+
+	/// RunClustering.readMatrix() of the data file.
+	double readMatrix() throws IOException;
+
+	static Workload create()
+	{
+		try {
+			return (Workload)Class.forName("BenchmarkWorkload").getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
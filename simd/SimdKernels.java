@@ -0,0 +1,132 @@
+import java.util.*;
+import jdk.incubator.vector.*;
+
+public class SimdKernels implements Kernels
+{
+	// Kernels on jdk.incubator.vector, with a scalar loop for the tail that does not fill a vector.
+	// This file needs the incubator module to compile and run:
+	//
+	//   javac --add-modules jdk.incubator.vector *.java simd/SimdKernels.java
+	//   java --add-modules jdk.incubator.vector RunClustering
+	//
+	// Kernels.INSTANCE picks it up automatically. 'java SimdKernels' checks every kernel against
+	// ScalarKernels and exits with status 1 if a result is outside the tolerance.
+
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	// Relative tolerance of the self check. The SIMD distance sums in float lanes in a different
+	// order than the scalar kernel, which sums in double.
+	private static final double TOLERANCE = 1e-5;
+
+	public double squaredDistance(float[] a, float[] b)
+	{
+		int i = 0, bound = SPECIES.loopBound(a.length);
+		FloatVector acc = FloatVector.zero(SPECIES);
+
+		for (; i < bound; i += SPECIES.length()) {
+			FloatVector t = FloatVector.fromArray(SPECIES, b, i).sub(FloatVector.fromArray(SPECIES, a, i));
+			acc = t.fma(t, acc);
+		}
+
+		double d = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < a.length; i++) {
+			double t = b[i] - a[i];
+			d += t * t;
+		}
+		return d;
+	}
+
+	public void moveTowards(float[] p, float[] x, float rate)
+	{
+		int i = 0, bound = SPECIES.loopBound(p.length);
+		FloatVector vr = FloatVector.broadcast(SPECIES, rate);
+
+		for (; i < bound; i += SPECIES.length()) {
+			FloatVector vp = FloatVector.fromArray(SPECIES, p, i);
+			FloatVector.fromArray(SPECIES, x, i).sub(vp).fma(vr, vp).intoArray(p, i);
+		}
+		for (; i < p.length; i++)
+			p[i] += rate * (x[i] - p[i]);
+	}
+
+	public void accumulate(float[] sum, float[] x)
+	{
+		int i = 0, bound = SPECIES.loopBound(sum.length);
+
+		for (; i < bound; i += SPECIES.length())
+			FloatVector.fromArray(SPECIES, sum, i).add(FloatVector.fromArray(SPECIES, x, i)).intoArray(sum, i);
+		for (; i < sum.length; i++)
+			sum[i] += x[i];
+	}
+
+	public void divide(float[] v, float d)
+	{
+		int i = 0, bound = SPECIES.loopBound(v.length);
+
+		for (; i < bound; i += SPECIES.length())
+			FloatVector.fromArray(SPECIES, v, i).div(d).intoArray(v, i);
+		for (; i < v.length; i++)
+			v[i] /= d;
+	}
+
+	/******************************* SELF CHECK ************************************/
+
+	public static void main(String[] args)
+	{
+		Kernels simd = new SimdKernels(), scalar = new ScalarKernels();
+		Random random = new Random(1);
+		int failures = 0;
+
+		System.out.println("Species " + SPECIES + ", selected kernels: " + Kernels.INSTANCE.getClass().getSimpleName());
+
+		// Lengths around the vector width exercise the tail loops
+		for (int n : new int[] { 0, 1, 3, SPECIES.length() - 1, SPECIES.length(), SPECIES.length() + 1, 200, 1001, 100000 }) {
+			float[] a = randomVector(random, n, 0.3), b = randomVector(random, n, 1.0);
+
+			failures += check("squaredDistance", n, simd.squaredDistance(a, b), scalar.squaredDistance(a, b));
+
+			float[] p1 = b.clone(), p2 = b.clone();
+			simd.moveTowards(p1, a, 0.15f);
+			scalar.moveTowards(p2, a, 0.15f);
+			failures += check("moveTowards", n, p1, p2);
+
+			float[] s1 = b.clone(), s2 = b.clone();
+			for (int r = 0; r < 10; r++) {
+				simd.accumulate(s1, a);
+				scalar.accumulate(s2, a);
+			}
+			failures += check("accumulate", n, s1, s2);
+
+			simd.divide(s1, 7);
+			scalar.divide(s2, 7);
+			failures += check("divide", n, s1, s2);
+		}
+
+		System.out.println(failures == 0 ? "All kernels within tolerance" : failures + " kernel checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static int check(String kernel, int n, double simd, double scalar)
+	{
+		if (Math.abs(simd - scalar) <= TOLERANCE * Math.max(1, Math.abs(scalar)))
+			return 0;
+		System.out.println(kernel + " n=" + n + ": simd " + simd + " scalar " + scalar);
+		return 1;
+	}
+
+	private static int check(String kernel, int n, float[] simd, float[] scalar)
+	{
+		for (int i = 0; i < n; i++)
+			if (check(kernel + "[" + i + "]", n, simd[i], scalar[i]) != 0)
+				return 1;
+		return 0;
+	}
+
+	private static float[] randomVector(Random random, int n, double density)
+	{
+		float[] v = new float[n];
+		for (int i = 0; i < n; i++)
+			v[i] = (random.nextDouble() < density ? random.nextFloat() : 0);
+		return v;
+	}
+}